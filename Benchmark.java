@@ -0,0 +1,115 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** A benchmarking class whose main program may be invoked as follows:
+ *      java gitlet.Benchmark compression [FILE...]
+ *  For each deflate level it stores the contents of FILE... (by default
+ *  the plain files of the current directory) through the loose object
+ *  encoding and reports the disk bytes saved against storing them
+ *  uncompressed, and the time each megabyte costs to write and read.
+ */
+public class Benchmark {
+
+    /** The deflate levels that are compared; 0 is the uncompressed baseline. */
+    private static final int[] LEVELS = {0, 1, 6, 9};
+    /** How many times each measurement is repeated; the fastest run counts. */
+    private static final int ROUNDS = 5;
+    /** Bytes per megabyte. */
+    private static final double MB = 1024 * 1024;
+
+    public static void main(String... args) throws IOException {
+        if (args.length == 0 || !args[0].equals("compression")) {
+            System.out.println("Usage: java gitlet.Benchmark compression [FILE...]");
+            return;
+        }
+        List<byte[]> contents = new ArrayList<>();
+        if (args.length == 1) {
+            for (String fileName : plainFilenamesIn(Repository.CWD)) {
+                contents.add(readContents(join(Repository.CWD, fileName)));
+            }
+        } else {
+            for (int i = 1; i < args.length; i += 1) {
+                contents.add(readContents(new File(args[i])));
+            }
+        }
+        compression(contents);
+    }
+
+    private static void compression(List<byte[]> contents) throws IOException {
+        long rawBytes = 0;
+        for (byte[] content : contents) {
+            rawBytes += content.length;
+        }
+        double rawMB = Math.max(rawBytes / MB, 1.0 / MB);
+        System.out.printf("%d objects, %d bytes%n", contents.size(), rawBytes);
+        System.out.printf("%5s %12s %12s %8s %12s %12s%n",
+                "level", "disk bytes", "saved", "ratio", "write ms/MB", "read ms/MB");
+
+        long baselineWrite = 0;
+        long baselineRead = 0;
+        for (int level : LEVELS) {
+            long storedBytes = 0;
+            long writeNanos = Long.MAX_VALUE;
+            long readNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round += 1) {
+                List<byte[]> encoded = new ArrayList<>();
+                long start = System.nanoTime();
+                for (byte[] content : contents) {
+                    encoded.add(encode(content, level));
+                }
+                writeNanos = Math.min(writeNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (byte[] object : encoded) {
+                    decode(object, level);
+                }
+                readNanos = Math.min(readNanos, System.nanoTime() - start);
+
+                storedBytes = 0;
+                for (byte[] object : encoded) {
+                    storedBytes += object.length;
+                }
+            }
+            if (level == 0) {
+                baselineWrite = writeNanos;
+                baselineRead = readNanos;
+            }
+            System.out.printf("%5d %12d %12d %7.1f%% %12.2f %12.2f%n",
+                    level, storedBytes, rawBytes - storedBytes,
+                    100.0 * storedBytes / Math.max(rawBytes, 1),
+                    writeNanos / 1e6 / rawMB, readNanos / 1e6 / rawMB);
+            if (level != 0) {
+                System.out.printf("      cost over level 0: +%.2f ms/MB write, +%.2f ms/MB read%n",
+                        (writeNanos - baselineWrite) / 1e6 / rawMB,
+                        (readNanos - baselineRead) / 1e6 / rawMB);
+            }
+        }
+    }
+
+    private static byte[] encode(byte[] content, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = (level == 0) ? bytes : ObjectStore.deflating(bytes, level);
+        out.write(content);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] object, int level) throws IOException {
+        InputStream in = new ByteArrayInputStream(object);
+        if (level != 0) {
+            in = ObjectStore.inflating(in);
+        }
+        in.transferTo(OutputStream.nullOutputStream());
+        in.close();
+    }
+}
@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size set of bit positions, kept as plain words in memory and
+ * run-length compressed on disk in the manner of EWAH: runs of all-zero or
+ * all-one words are stored as a count, the other words as they are.
+ *
+ * Encoding: a sequence of markers until all words are covered. A marker is
+ * an int holding the length of a run shifted left by one, with the fill bit
+ * of the run in the lowest bit, then an int count of literal words that
+ * follow the run as longs.
+ */
+class Bitmap {
+
+    /** The number of positions. */
+    private final int size;
+    /** The bits, 64 positions to a word, lowest position in the lowest bit. */
+    private final long[] words;
+
+    Bitmap(int size) {
+        this.size = size;
+        words = new long[(size + 63) >>> 6];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean get(int position) {
+        return (words[position >>> 6] & (1L << position)) != 0;
+    }
+
+    void set(int position) {
+        words[position >>> 6] |= 1L << position;
+    }
+
+    // The first set position at or after FROM, or -1 if there is none.
+    int nextSetBit(int from) {
+        int index = from >>> 6;
+        if (index >= words.length) {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while (word == 0) {
+            index += 1;
+            if (index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Add the positions of OTHER, which must have the same size.
+    void or(Bitmap other) {
+        for (int i = 0; i < words.length; i += 1) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    // Remove the positions of OTHER, which must have the same size.
+    void andNot(Bitmap other) {
+        for (int i = 0; i < words.length; i += 1) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
+    // Write the compressed encoding.
+    void write(DataOutput out) throws IOException {
+        int i = 0;
+        while (i < words.length) {
+            long fill = (words[i] == -1L) ? -1L : 0L;
+            int run = 0;
+            while (i + run < words.length && words[i + run] == fill) {
+                run += 1;
+            }
+            int literals = 0;
+            while (i + run + literals < words.length
+                    && words[i + run + literals] != 0 && words[i + run + literals] != -1L) {
+                literals += 1;
+            }
+            out.writeInt((run << 1) | (int) (fill & 1));
+            out.writeInt(literals);
+            for (int j = 0; j < literals; j += 1) {
+                out.writeLong(words[i + run + j]);
+            }
+            i += run + literals;
+        }
+    }
+
+    // Read a bitmap of SIZE positions from its encoding at the position of IN.
+    static Bitmap read(ByteBuffer in, int size) {
+        Bitmap bitmap = new Bitmap(size);
+        int i = 0;
+        while (i < bitmap.words.length) {
+            int marker = in.getInt();
+            int literals = in.getInt();
+            long fill = ((marker & 1) != 0) ? -1L : 0L;
+            for (int run = marker >>> 1; run > 0; run -= 1) {
+                bitmap.words[i] = fill;
+                i += 1;
+            }
+            for (int j = 0; j < literals; j += 1) {
+                bitmap.words[i] = in.getLong();
+                i += 1;
+            }
+        }
+        return bitmap;
+    }
+}
@@ -1,11 +1,31 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serial;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static gitlet.Utils.*;
 
 public class Blob implements Serializable {
 
+    /** Pinned so that blobs written by earlier versions stay readable. */
+    @Serial
+    private static final long serialVersionUID = 1387017181355091720L;
+
+    /** The most files checkout writes at the same time. */
+    private static final int WRITE_THREADS = 8;
+
     private byte[] fileContent;
     private String blobID;
 
@@ -15,23 +35,77 @@ public class Blob implements Serializable {
     }
 
     public void saveBlob() {
-        if (!Repository.BLOBS_DIR.exists()) {
-            Repository.BLOBS_DIR.mkdir();
-        }
-        File blobFile = join(Repository.BLOBS_DIR, blobID);
-        writeObject(blobFile, this);
+        ObjectStore.local().saveBlob(blobID, fileContent);
     }
 
-    // Given a blob ID, find the content the blob stores.
+    // Given a blob ID, find the content the blob stores. Callers must not
+    // modify the returned array, which is shared through the ObjectCache.
     public static byte[] getBlobContent(String blobID) {
-        File blobFile = join(Repository.BLOBS_DIR, blobID);
-        return readObject(blobFile, Blob.class).getFileContent();
+        ObjectStore store = ObjectStore.local();
+        String cacheKey = "blob " + store.getGitletDir() + " " + blobID;
+        byte[] content = (byte[]) ObjectCache.get(cacheKey);
+        if (content != null) {
+            return content;
+        }
+        try (InputStream in = store.openBlob(blobID)) {
+            content = in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectCache.put(cacheKey, content, content.length);
+        return content;
+    }
+
+    // Write the content of the given blob to TARGET, inflating it on the fly
+    // instead of reading the whole blob into memory. Returns the file size.
+    public static long writeBlobContent(String blobID, File target) {
+        try (InputStream in = ObjectStore.local().openBlob(blobID);
+             OutputStream out = Files.newOutputStream(target.toPath())) {
+            return in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Write the blobs of FILENAMETOBLOBID to their files in the cwd, several
+    // at a time on a pool of at most WRITE_THREADS threads, and return the
+    // number of bytes written.
+    public static long writeBlobContents(Map<String, String> fileNameToBlobID) {
+        if (fileNameToBlobID.size() <= 1) {
+            long bytes = 0;
+            for (Map.Entry<String, String> entry : fileNameToBlobID.entrySet()) {
+                bytes += writeBlobContent(entry.getValue(), join(Repository.CWD, entry.getKey()));
+            }
+            return bytes;
+        }
+        // Open the packs here, so the writers only read shared state.
+        ObjectStore.local().packs();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(WRITE_THREADS, fileNameToBlobID.size()));
+        try {
+            List<Future<Long>> writes = new ArrayList<>();
+            for (Map.Entry<String, String> entry : fileNameToBlobID.entrySet()) {
+                File target = join(Repository.CWD, entry.getKey());
+                writes.add(pool.submit(() -> writeBlobContent(entry.getValue(), target)));
+            }
+            long bytes = 0;
+            for (Future<Long> write : writes) {
+                bytes += write.get();
+            }
+            return bytes;
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        } catch (InterruptedException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
-    // Given a file name in the cwd, calculate its current blob ID.
+    // Given a file name in the cwd, find its current blob ID. The file is
+    // only hashed if the StatCache cannot vouch for it.
     public static String getBlobID(String fileName) {
-        File file = join(Repository.CWD, fileName);
-        return sha1((Object) readContents(file));
+        return StatCache.local().blobID(fileName);
     }
 
     public byte[] getFileContent() {
@@ -12,7 +12,7 @@ public class Branch {
         File branchFile = join(Repository.HEADS_DIR, branchName);
         if (branchFile.exists()) {
             System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            Main.exit(0);
         }
         writeContents(branchFile, currentCommitID);
     }
@@ -54,31 +54,58 @@ public class Branch {
     public static void checkOutCommit(String targetCommitID) {
         Commit currentCommit = Commit.findCommit(getCurrentCommitID());
         Commit targetCommit = Commit.findCommit(targetCommitID);
-        Map<String, String> currentFileMap = currentCommit.getFileNameToBlobID();
+        Map<String, String> changes = currentCommit.diffTo(targetCommit);
         Map<String, String> targetFileMap = targetCommit.getFileNameToBlobID();
 
+        // Only files the target adds can be in the way.
         List<String> untrackedFiles = new ArrayList<>();
         for (String file : currentCommit.getUntrackedFiles()) {
-            if (targetFileMap.containsKey(file)) {
+            if (changes.get(file) != null) {
                 untrackedFiles.add(file);
             }
         }
         if (!untrackedFiles.isEmpty()) {
             System.out.println("`There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        for (String fileName : currentFileMap.keySet()) {
-            if (!targetFileMap.containsKey(fileName)) {
-                restrictedDelete(fileName);
+        // Files that differ between the commits are written; the others only
+        // if their working copy was modified or deleted, which the StatCache
+        // tells without reading unchanged files.
+        Map<String, String> filesToWrite = new TreeMap<>();
+        List<String> unchangedFiles = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                restrictedDelete(change.getKey());
+            } else {
+                filesToWrite.put(change.getKey(), change.getValue());
             }
         }
         for (String fileName : targetFileMap.keySet()) {
+            if (!changes.containsKey(fileName)) {
+                if (join(Repository.CWD, fileName).isFile()) {
+                    unchangedFiles.add(fileName);
+                } else {
+                    filesToWrite.put(fileName, targetFileMap.get(fileName));
+                }
+            }
+        }
+        StatCache statCache = StatCache.local();
+        Map<String, String> workingBlobIDs = statCache.blobIDs(unchangedFiles,
+                Runtime.getRuntime().availableProcessors());
+        for (String fileName : unchangedFiles) {
             String blobID = targetFileMap.get(fileName);
-            byte[] blobContent = Blob.getBlobContent(blobID);
-            File targetFile = join(Repository.CWD, fileName);
-            writeContents(targetFile, blobContent);
+            if (!blobID.equals(workingBlobIDs.get(fileName))) {
+                filesToWrite.put(fileName, blobID);
+            }
+        }
+        long bytesWritten = Blob.writeBlobContents(filesToWrite);
+        statCache.save();
+        if (Boolean.getBoolean("gitlet.checkoutStats")) {
+            System.err.println("checkout: " + filesToWrite.size() + " files written ("
+                    + bytesWritten + " bytes), "
+                    + (targetFileMap.size() - filesToWrite.size()) + " skipped");
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
@@ -86,58 +113,10 @@ public class Branch {
         stagingArea.saveStagingArea();
     }
 
-    // Use BFS to find the split point when merging two branches.
+    // Find the split point when merging two branches: their latest common
+    // ancestor, found through the commit-graph.
     public static String findSplitPoint(String branchCommitID) {
-        Set<String> visitedFromCurrent = new HashSet<>();
-        Set<String> visitedFromTarget = new HashSet<>();
-        Queue<String> currentQueue = new LinkedList<>();
-        Queue<String> targetQueue = new LinkedList<>();
-
-        String currentCommitID = getCurrentCommitID();
-        currentQueue.add(currentCommitID);
-        targetQueue.add(branchCommitID);
-
-        while (!currentQueue.isEmpty() || !targetQueue.isEmpty()) {
-            String commitID = tryVisitNext(currentQueue,
-                    visitedFromCurrent, visitedFromTarget);
-            if (commitID != null) {
-                return commitID;
-            }
-
-            commitID = tryVisitNext(targetQueue,
-                    visitedFromTarget, visitedFromCurrent);
-            if (commitID != null) {
-                return commitID;
-            }
-        }
-
-        return null;
-    }
-
-    private static String tryVisitNext(Queue<String> queue,
-                                       Set<String> visitedSelf, Set<String> visitedOther) {
-        while (!queue.isEmpty()) {
-            String commitID = queue.poll();
-
-            if (!visitedSelf.add(commitID)) {
-                continue;
-            }
-            if (visitedOther.contains(commitID)) {
-                return commitID;
-            }
-
-            Commit commit = Commit.findCommit(commitID);
-            if (commit == null) {
-                continue;
-            }
-            if (commit.getParentCommitID() != null) {
-                queue.add(commit.getParentCommitID());
-            }
-            if (commit.getSecondParentCommitID() != null) {
-                queue.add(commit.getSecondParentCommitID());
-            }
-        }
-        return null;
+        return ObjectStore.local().commitGraph().mergeBase(getCurrentCommitID(), branchCommitID);
     }
 
     public static boolean mergeBranch(String branchName, String splitPointID)  {
@@ -148,18 +127,23 @@ public class Branch {
         Commit splitCommit = Commit.findCommit(splitPointID);
         Commit currentCommit = Commit.findCommit(currentCommitID);
         Commit branchCommit = Commit.findCommit(branchCommitID);
-        Map<String, String> splitFiles = splitCommit.getFileNameToBlobID();
-        Map<String, String> currentFiles = currentCommit.getFileNameToBlobID();
-        Map<String, String> branchFiles = branchCommit.getFileNameToBlobID();
+        // Files that changed on neither side are equal on both, so only the
+        // files of the two diffs against the split point need merging.
+        Map<String, String> currentChanges = splitCommit.diffTo(currentCommit);
+        Map<String, String> branchChanges = splitCommit.diffTo(branchCommit);
         Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(splitFiles.keySet());
-        allFiles.addAll(currentFiles.keySet());
-        allFiles.addAll(branchFiles.keySet());
+        allFiles.addAll(currentChanges.keySet());
+        allFiles.addAll(branchChanges.keySet());
+        // The merged files are staged together once all are written.
+        List<String> filesToAdd = new ArrayList<>();
+        List<String> filesToRemove = new ArrayList<>();
 
         for (String fileName : allFiles) {
-            String splitBlobID = splitFiles.getOrDefault(fileName, null);
-            String currentBlobID = currentFiles.getOrDefault(fileName, null);
-            String branchBlobID = branchFiles.getOrDefault(fileName, null);
+            String splitBlobID = splitCommit.getBlobID(fileName);
+            String currentBlobID = currentChanges.containsKey(fileName)
+                    ? currentChanges.get(fileName) : splitBlobID;
+            String branchBlobID = branchChanges.containsKey(fileName)
+                    ? branchChanges.get(fileName) : splitBlobID;
             if (Objects.equals(currentBlobID, branchBlobID)) {
                 continue;
             }
@@ -176,12 +160,13 @@ public class Branch {
                 if (inGiven && !inCurrent) {
                     // only present at the given branch, checkout and stage.
                     Repository.checkOutWithCommitIDAndFileName(branchCommitID, fileName);
-                    Repository.add(fileName);
+                    filesToAdd.add(fileName);
                 } else if (inGiven && inCurrent
                         && !Objects.equals(currentBlobID, branchBlobID)) {
                     hasConflict = true;
                     System.out.println("Encountered a merge conflict.");
                     handleConflict(fileName, currentBlobID, branchBlobID);
+                    filesToAdd.add(fileName);
                 }
             } else { // if present at the split point,
                 // only deleted in the current branch, do nothing
@@ -189,24 +174,32 @@ public class Branch {
 
                 if (!inGiven && !currentModified) {
                     // deleted in the given branch, not modified in the current branch, remove it
-                    Repository.remove(fileName);
+                    filesToRemove.add(fileName);
                 } else if ((!inGiven && currentModified) || (!inCurrent && branchModified)) {
                     hasConflict = true;
                     System.out.println("Encountered a merge conflict.");
                     handleConflict(fileName, currentBlobID, branchBlobID);
+                    filesToAdd.add(fileName);
                 } else if (branchModified && !currentModified) {
                     // modified in the given branch, not modified in the current branch,
                     // checkout and stage it.
                     Repository.checkOutWithCommitIDAndFileName(branchCommitID, fileName);
-                    Repository.add(fileName);
+                    filesToAdd.add(fileName);
                 } else if (branchModified && currentModified
                         && !Objects.equals(currentBlobID, branchBlobID)) {
                     hasConflict = true;
                     System.out.println("Encountered a merge conflict.");
                     handleConflict(fileName, currentBlobID, branchBlobID);
+                    filesToAdd.add(fileName);
                 }
             }
         }
+        if (!filesToRemove.isEmpty()) {
+            Repository.remove(filesToRemove);
+        }
+        if (!filesToAdd.isEmpty()) {
+            Repository.add(filesToAdd);
+        }
         return hasConflict;
     }
 
@@ -226,6 +219,5 @@ public class Branch {
                 + ">>>>>>>\n";
         File conflictFile = join(Repository.CWD, fileName);
         writeContents(conflictFile, conflictContent);
-        Repository.add(fileName);
     }
 }
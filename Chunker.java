@@ -0,0 +1,68 @@
+package gitlet;
+
+/**
+ * Content-defined chunking in the style of FastCDC. A gear hash rolls over
+ * the content and a chunk ends where the hash matches a mask, so an edit
+ * only changes the chunks around it and the rest keep their boundaries.
+ * Chunks are at least MIN_CHUNK_LENGTH and at most MAX_CHUNK_LENGTH bytes;
+ * a stricter mask before AVERAGE_CHUNK_LENGTH and a looser one after it
+ * keep most chunks close to the average.
+ */
+class Chunker {
+
+    /** The smallest chunk, except for the last one of a file. */
+    static final int MIN_CHUNK_LENGTH = 16 * 1024;
+    /** The chunk length the masks aim for. */
+    static final int AVERAGE_CHUNK_LENGTH = 64 * 1024;
+    /** The largest chunk. */
+    static final int MAX_CHUNK_LENGTH = 256 * 1024;
+    /** The mask used before the average length: two bits more than log2(average). */
+    private static final long MASK_SMALL = highBits(18);
+    /** The mask used after the average length: two bits fewer than log2(average). */
+    private static final long MASK_LARGE = highBits(14);
+    /** A random 64-bit value for each byte value. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // A fixed splitmix64 sequence, so that every repository cuts alike.
+        long state = 0x676974_6c6574L;
+        for (int i = 0; i < GEAR.length; i += 1) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    // The length of the chunk that starts at the beginning of BUFFER, given
+    // that its first LENGTH bytes are filled. When LENGTH is below
+    // MAX_CHUNK_LENGTH the buffer holds the rest of the file.
+    static int cut(byte[] buffer, int length) {
+        if (length <= MIN_CHUNK_LENGTH) {
+            return length;
+        }
+        int limit = Math.min(length, MAX_CHUNK_LENGTH);
+        int normal = Math.min(limit, AVERAGE_CHUNK_LENGTH);
+        long hash = 0;
+        int i = MIN_CHUNK_LENGTH;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    // The top BITS bits set; these depend on the last 64 bytes hashed.
+    private static long highBits(int bits) {
+        return -1L << (64 - bits);
+    }
+}
@@ -0,0 +1,76 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/** Runs a gitlet command through the daemon of the current repository, if
+ *  one is running, and otherwise in this process like Main does. Only the
+ *  socket in this repository's .gitlet directory is tried, since a daemon
+ *  serves only the repository it was started in. Commands that read
+ *  standard input (--stdin) always run in this process.
+ */
+public class Client {
+
+    /** Usage: java gitlet.Client ARGS, with the same ARGS as gitlet.Main. */
+    public static void main(String[] args) {
+        File socket = Daemon.socketFile(Repository.GITLET_DIR);
+        if (socket.exists() && !Arrays.asList(args).contains("--stdin")) {
+            Integer status = forward(socket, args);
+            if (status != null) {
+                System.out.flush();
+                System.exit(status);
+            }
+        }
+        Main.main(args);
+    }
+
+    // Run ARGS in the daemon listening on SOCKET and return the exit status,
+    // or null if the daemon serves another repository or is not running.
+    private static Integer forward(File socket, String[] args) {
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socket.toPath()))) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            out.writeInt(Daemon.PROTOCOL);
+            out.writeUTF(Repository.GITLET_DIR.getCanonicalPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return relay(in);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    // Print the frames the daemon sends until it reports the exit status.
+    // The command may have run already, so a lost connection is not retried.
+    private static int relay(DataInputStream in) {
+        try {
+            while (true) {
+                int kind = in.readByte();
+                if (kind == Daemon.FRAME_EXIT) {
+                    return in.readInt();
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PrintStream target = (kind == Daemon.FRAME_STDERR) ? System.err : System.out;
+                target.write(bytes, 0, bytes.length);
+            }
+        } catch (IOException excp) {
+            System.err.println("Lost the connection to the daemon: " + excp.getMessage());
+            return 1;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package gitlet;
 
-import java.io.File;
+import java.io.Serial;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -8,6 +8,12 @@ import java.util.*;
 import static gitlet.Utils.*;
 
 /** Represents a gitlet commit object.
+ *
+ *  Commits are stored in the binary encoding of CommitCodec and refer to a
+ *  root Tree, which is only read when the files are asked for. Only the
+ *  initial commit is still java-serialized, so that every repository keeps
+ *  the same root commit; commits written by earlier versions are read the
+ *  same way and carry their files instead of a tree.
  *
  *  @author George Yuan
  */
@@ -18,6 +24,10 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
+    /** Pinned so that commits written by earlier versions stay readable. */
+    @Serial
+    private static final long serialVersionUID = -885728333956210104L;
+
     /** The commit time. */
     private Date timeStamp;
     /** The parent commit's ID. */
@@ -26,10 +36,19 @@ public class Commit implements Serializable {
     private String secondParentCommitID;
      /** The message of this commit. */
     private String message;
-    /** The commit files and their blob IDs. */
+    /** The commit files and their blob IDs, once they have been read. Commits
+     *  read from the store keep them in a FileMap. */
     private Map<String, String> fileNameToBlobID;
     /** The commit ID. */
     private String commitID;
+    /** The root tree, or null for commits that carry their files themselves. */
+    private transient String treeID;
+    /** The CommitCodec encoding of this commit, or null for a java-serialized one. */
+    private transient byte[] encoded;
+    /** Where the file list of a version 1 encoding starts in encoded. */
+    private transient int filesOffset;
+    /** The object store this commit's tree is read from. */
+    private transient ObjectStore store;
     /** The standard length of a commit ID. */
     public static final int STANDARD_COMMIT_ID_LENGTH = 40;
     /** The initial commit ID. */
@@ -44,77 +63,187 @@ public class Commit implements Serializable {
         initialCommitID = commitID;
     }
 
-    public Commit(String message, String parentCommitID,
-                  Map<String, String> fileNameToBlobID) {
-        timeStamp = new Date();
-        this.parentCommitID = parentCommitID;
-        this.message = message;
-        this.fileNameToBlobID = fileNameToBlobID;
-        commitID = sha1((Object) serialize(this));
+    public Commit(String message, String parentCommitID, String treeID) {
+        this(message, parentCommitID, null, treeID);
     }
 
     // Only used when two branches merge together.
     private Commit(String message, String parentCommitID, String secondParentCommitID,
-                   Map<String, String> fileNameToBlobID) {
+                   String treeID) {
         timeStamp = new Date();
         this.parentCommitID = parentCommitID;
         this.secondParentCommitID = secondParentCommitID;
         this.message = message;
-        this.fileNameToBlobID = fileNameToBlobID;
-        commitID = sha1((Object) serialize(this));
+        this.treeID = treeID;
+        store = ObjectStore.local();
+        encoded = CommitCodec.encode(timeStamp, parentCommitID, secondParentCommitID,
+                message, treeID);
+        commitID = sha1((Object) encoded);
     }
 
+    // A commit read by CommitCodec. Its files are read from TREEID, or if that
+    // is null, decoded from the file list at FILESOFFSET in ENCODED.
+    Commit(String commitID, Date timeStamp, String parentCommitID, String secondParentCommitID,
+           String message, String treeID, byte[] encoded, int filesOffset) {
+        this.commitID = commitID;
+        this.timeStamp = timeStamp;
+        this.parentCommitID = parentCommitID;
+        this.secondParentCommitID = secondParentCommitID;
+        this.message = message;
+        this.treeID = treeID;
+        this.encoded = encoded;
+        this.filesOffset = filesOffset;
+    }
+
+    // Store this commit, and cache it with the files it may have inherited
+    // from its parent, so that later lookups share them.
     public void saveCommit() {
-        if (!Repository.COMMITS_DIR.exists()) {
-            Repository.COMMITS_DIR.mkdir();
-        }
-        File commitFile = join(Repository.COMMITS_DIR, commitID);
-        writeObject(commitFile, this);
+        byte[] bytes = (encoded != null) ? encoded : serialize(this);
+        ObjectStore.local().saveCommit(commitID, bytes);
+        ObjectStore.local().indexCommit(commitID, message);
+        ObjectCache.put(cacheKey(ObjectStore.local(), commitID), this,
+                bytes.length + 2L * message.length() + 256);
+    }
+
+    private static String cacheKey(ObjectStore store, String commitID) {
+        return "commit " + store.getGitletDir() + " " + commitID;
     }
 
     public static Commit findCommit(String commitID) {
+        return findCommit(ObjectStore.local(), commitID);
+    }
+
+    // Find a commit in the given object store, e.g. the one of a remote.
+    // Commits are immutable, so found commits are kept in the ObjectCache.
+    public static Commit findCommit(ObjectStore store, String commitID) {
         if (commitID == null) {
             return null;
         }
-        File targetCommit = join(Repository.COMMITS_DIR, commitID);
-        if (!targetCommit.exists()) {
+        String cacheKey = cacheKey(store, commitID);
+        Commit cached = (Commit) ObjectCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        if (!store.hasCommit(commitID)) {
             return null;
         }
-        return readObject(targetCommit, Commit.class);
+        byte[] bytes = store.readCommit(commitID);
+        Commit commit;
+        if (CommitCodec.isEncoded(bytes)) {
+            commit = CommitCodec.decode(commitID, bytes);
+        } else {
+            commit = deserialize(bytes, Commit.class);
+            commit.fileNameToBlobID = FileMap.of(commit.fileNameToBlobID);
+        }
+        commit.store = store;
+        ObjectCache.put(cacheKey, commit, bytes.length + 2L * commit.message.length() + 256);
+        return commit;
     }
 
+    // The commit an abbreviated ID stands for, found through the
+    // CommitIdIndex, or null if there is none. If the index knows no match,
+    // the object store is listed in case the index is behind. An ambiguous
+    // prefix is reported with the commits it matches.
     public static Commit findCommitWithShortID(String shortCommitID) {
-        List<String> matches = new ArrayList<>();
-        for (String commitID : plainFilenamesIn(Repository.COMMITS_DIR)) {
-            if (commitID.startsWith(shortCommitID)) {
-                matches.add(commitID);
+        ObjectStore store = ObjectStore.local();
+        List<String> matches = CommitIdIndex.open(store).withPrefix(shortCommitID);
+        if (matches.isEmpty()) {
+            matches = store.findCommitsWithPrefix(shortCommitID);
+        }
+        if (matches.size() > 1) {
+            System.out.println("Commit id " + shortCommitID + " is ambiguous; it matches:");
+            for (String match : matches) {
+                System.out.println(match);
             }
+            Main.exit(0);
         }
         return (matches.size() == 1) ? findCommit(matches.get(0)) : null;
     }
 
     public static Commit createMergeCommit(String message,
                                            String parentCommitID, String mergedCommitID,
-                                           Map<String, String> fileNameToBlobID) {
+                                           String treeID) {
         if (mergedCommitID == null) {
-            return new Commit(message, parentCommitID, fileNameToBlobID);
+            return new Commit(message, parentCommitID, treeID);
         } else {
-            return new Commit(message, parentCommitID, mergedCommitID, fileNameToBlobID);
+            return new Commit(message, parentCommitID, mergedCommitID, treeID);
+        }
+    }
+
+    // The root tree, or null for commits that carry their files themselves.
+    public String getTreeID() {
+        return treeID;
+    }
+
+    // The root tree of this commit, first storing one for commits that carry
+    // their files themselves so that later commits can share its subtrees.
+    public String getOrWriteTreeID() {
+        if (treeID == null) {
+            treeID = Tree.write(store, getFileNameToBlobID());
+        }
+        return treeID;
+    }
+
+    // Take the files of PARENT with CHANGES applied as the files of this new
+    // commit, if PARENT has its files in memory already. The FileMap shares
+    // all unchanged entries with the parent's, so diffTo between the two only
+    // visits the changed ones.
+    void inheritFiles(Commit parent, Map<String, String> changes) {
+        if (parent.fileNameToBlobID != null) {
+            fileNameToBlobID = FileMap.of(parent.fileNameToBlobID).withChanges(changes);
+        }
+    }
+
+    // The blob of one file, without reading the trees of other directories.
+    public String getBlobID(String fileName) {
+        if (fileNameToBlobID == null && treeID != null) {
+            return Tree.lookup(store, treeID, fileName);
         }
+        return getFileNameToBlobID().get(fileName);
+    }
+
+    // The files that differ in OTHER: their blob IDs there, or null if OTHER
+    // does not have them. Only subtrees that differ are read.
+    public Map<String, String> diffTo(Commit other) {
+        if (fileNameToBlobID != null && other.fileNameToBlobID != null) {
+            return FileMap.of(fileNameToBlobID).diff(FileMap.of(other.fileNameToBlobID));
+        }
+        return Tree.diff(store, getOrWriteTreeID(), other.getOrWriteTreeID());
     }
 
     // Any files are added, deleted or modified but not staged.
     public List<String> getModifiedNotStagedFiles() {
+        return getModifiedNotStagedFiles(1);
+    }
+
+    // The same, hashing the files whose StatCache entries are stale on up to
+    // JOBS threads. The tracked files and the sorted working files are
+    // compared in one merge pass, and the result is in name order.
+    public List<String> getModifiedNotStagedFiles(int jobs) {
         List<String> modifiedNotStagedFiles = new ArrayList<>();
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
-        List<String> stageForRemoval = stagingArea.getStageForRemoval();
+        Set<String> stageForRemoval = new HashSet<>(stagingArea.getStageForRemoval());
         List<String> cwd = plainFilenamesIn(Repository.CWD);
 
+        SortedMap<String, String> fileNameToBlobID = new TreeMap<>(getFileNameToBlobID());
+        List<String> present = new ArrayList<>();
+        int next = 0;
+        for (String fileName : fileNameToBlobID.keySet()) {
+            while (next < cwd.size() && cwd.get(next).compareTo(fileName) < 0) {
+                next += 1;
+            }
+            if (next < cwd.size() && cwd.get(next).equals(fileName)) {
+                present.add(fileName);
+            }
+        }
+        Map<String, String> currentBlobIDs = StatCache.local().blobIDs(present, jobs);
+
         for (String fileName : fileNameToBlobID.keySet()) {
             String commitBlobID = fileNameToBlobID.get(fileName);
             String stagedBlobID = stageForAddition.get(fileName);
-            if (!cwd.contains(fileName)) {
+            String currentBlobID = currentBlobIDs.get(fileName);
+            if (currentBlobID == null) {
                 // deleted in the working directory,
                 // but not staged for removal or already staged for addition.
                 if (!stageForRemoval.contains(fileName)
@@ -124,7 +253,6 @@ public class Commit implements Serializable {
             } else {
                 // changed in the working directory,
                 // but not staged or with different contents than in the stage.
-                String currentBlobID = Blob.getBlobID(fileName);
                 if (stageForAddition.containsKey(fileName)) {
                     if (!stagedBlobID.equals(currentBlobID)) {
                         modifiedNotStagedFiles.add(fileName + " (modified)");
@@ -144,6 +272,7 @@ public class Commit implements Serializable {
         List<String> untrackedFiles = new ArrayList<>();
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
+        Map<String, String> fileNameToBlobID = getFileNameToBlobID();
         for (String fileName : plainFilenamesIn(Repository.CWD)) {
             if (!fileNameToBlobID.containsKey(fileName)
                     && !stageForAddition.containsKey(fileName)) {
@@ -162,14 +291,37 @@ public class Commit implements Serializable {
         return secondParentCommitID;
     }
 
+    public Date getTimeStamp() {
+        return timeStamp;
+    }
+
     public String getMessage() {
         return message;
     }
 
     public Map<String, String> getFileNameToBlobID() {
+        if (fileNameToBlobID == null) {
+            fileNameToBlobID = (treeID != null)
+                    ? readFiles()
+                    : CommitCodec.decodeFiles(encoded, filesOffset);
+        }
         return fileNameToBlobID;
     }
 
+    // The files of the tree of this commit. If the first parent is cached
+    // with its files loaded, they are derived from the parent's with the
+    // tree diff, which only reads the subtrees that changed, and share all
+    // unchanged entries with them.
+    private FileMap readFiles() {
+        Commit parent = (parentCommitID == null) ? null
+                : (Commit) ObjectCache.get(cacheKey(store, parentCommitID));
+        if (parent != null && parent.fileNameToBlobID != null && parent.treeID != null) {
+            return FileMap.of(parent.fileNameToBlobID)
+                    .withChanges(Tree.diff(store, parent.treeID, treeID));
+        }
+        return Tree.flatten(store, treeID);
+    }
+
     public String getCommitID() {
         return commitID;
     }
@@ -180,9 +332,14 @@ public class Commit implements Serializable {
 
     @Override
     public String toString() {
+        return format(commitID);
+    }
+
+    // The log entry of this commit, showing SHOWNCOMMITID as its ID.
+    public String format(String shownCommitID) {
         StringBuilder sb = new StringBuilder();
         sb.append("===\n");
-        sb.append("commit ").append(commitID).append("\n");
+        sb.append("commit ").append(shownCommitID).append("\n");
 
         if (secondParentCommitID != null) {
             sb.append("Merge: ");
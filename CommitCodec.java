@@ -0,0 +1,117 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import static gitlet.Utils.*;
+
+/**
+ * The binary encoding of commits, which replaces java serialization.
+ *
+ * Magic "GCMT", a version byte, the number of parents as a byte and their
+ * raw IDs, the time as epoch milliseconds, the message as an int length and
+ * UTF-8 bytes, then the raw ID of the root Tree.
+ *
+ * Version 1 commits have no tree; instead they end with the number of files
+ * as an int and for every file, in name order, its name (int length and
+ * UTF-8 bytes) and the raw ID of its blob. That list is only decoded when a
+ * caller asks for it.
+ */
+class CommitCodec {
+
+    /** The magic bytes that start an encoded commit. */
+    private static final byte[] MAGIC = {'G', 'C', 'M', 'T'};
+    /** The encoding version. */
+    private static final int VERSION = 2;
+    /** The encoding version that lists the files instead of a tree. */
+    private static final int FILE_LIST_VERSION = 1;
+
+    // Whether BYTES is an encoded commit rather than a java-serialized one.
+    static boolean isEncoded(byte[] bytes) {
+        return bytes.length > MAGIC.length
+                && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    static byte[] encode(Date timeStamp, String parentCommitID, String secondParentCommitID,
+                         String message, String treeID) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            if (parentCommitID == null) {
+                out.writeByte(0);
+            } else if (secondParentCommitID == null) {
+                out.writeByte(1);
+                out.write(fromHex(parentCommitID));
+            } else {
+                out.writeByte(2);
+                out.write(fromHex(parentCommitID));
+                out.write(fromHex(secondParentCommitID));
+            }
+            out.writeLong(timeStamp.getTime());
+            writeString(out, message);
+            out.write(fromHex(treeID));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    // Decode an encoded commit; the files of version 1 commits are decoded lazily.
+    static Commit decode(String commitID, byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(MAGIC.length);
+        int version = in.get();
+        if (version != VERSION && version != FILE_LIST_VERSION) {
+            throw error("Unknown encoding of commit %s.", commitID);
+        }
+        int parentCount = in.get();
+        String parentCommitID = (parentCount > 0) ? readID(in) : null;
+        String secondParentCommitID = (parentCount > 1) ? readID(in) : null;
+        Date timeStamp = new Date(in.getLong());
+        String message = readString(in);
+        if (version == FILE_LIST_VERSION) {
+            return new Commit(commitID, timeStamp, parentCommitID, secondParentCommitID,
+                    message, null, bytes, in.position());
+        }
+        return new Commit(commitID, timeStamp, parentCommitID, secondParentCommitID,
+                message, readID(in), null, 0);
+    }
+
+    // Decode the file list that starts at FILESOFFSET in BYTES.
+    static FileMap decodeFiles(byte[] bytes, int filesOffset) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(filesOffset);
+        int count = in.getInt();
+        FileMap fileNameToBlobID = FileMap.empty();
+        for (int i = 0; i < count; i += 1) {
+            String fileName = readString(in);
+            fileNameToBlobID = fileNameToBlobID.with(fileName, readID(in));
+        }
+        return fileNameToBlobID;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static String readID(ByteBuffer in) {
+        byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+        in.get(id);
+        return toHex(id);
+    }
+}
@@ -0,0 +1,311 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit-graph: the parents, generation number and time of every commit
+ * in one memory-mapped file, so that history walks do not read commit objects.
+ * A commit's generation is one more than the largest generation of its
+ * parents (1 for a root), so an ancestor always has a smaller generation than
+ * its descendants and a walk can stop once it is below the commit it looks for.
+ *
+ * File: magic "GCGR", version, commit count, an ObjectIdTable of the commit
+ * IDs, then a fixed-width record per commit in ID order: the positions of
+ * its two parents (NO_PARENT if absent) and its generation as ints, and its
+ * time in epoch milliseconds as a long.
+ *
+ * Commits made after the file was written are read from the object store
+ * instead, and their generations are computed from their parents.
+ */
+class CommitGraph {
+
+    /** The magic bytes that start the file. */
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    /** The file format version. */
+    private static final int VERSION = 1;
+    /** The length of the magic, version and count. */
+    private static final int HEADER_LENGTH = 12;
+    /** The length of a commit record. */
+    private static final int RECORD_LENGTH = 20;
+    /** The parent position of a missing parent. */
+    private static final int NO_PARENT = -1;
+    /** Merge-base flag of commits reached from the first commit. */
+    private static final int FROM_FIRST = 1;
+    /** Merge-base flag of commits reached from the second commit. */
+    private static final int FROM_SECOND = 2;
+
+    /** The object store whose commits this graph describes. */
+    private final ObjectStore store;
+    /** The mapped file, or null if it has not been written yet. */
+    private final MappedByteBuffer data;
+    /** The sorted commit IDs inside the file. */
+    private final ObjectIdTable ids;
+    /** The position of the records inside the file. */
+    private final int recordsStart;
+    /** The parents of commits outside the file, read from the object store. */
+    private final Map<String, List<String>> looseParents = new HashMap<>();
+    /** The generations of commits outside the file. */
+    private final Map<String, Integer> looseGenerations = new HashMap<>();
+
+    private CommitGraph(ObjectStore store) {
+        this.store = store;
+        File graphFile = graphFile(store.getGitletDir());
+        if (!graphFile.exists()) {
+            data = null;
+            ids = null;
+            recordsStart = 0;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(graphFile.toPath())) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] magic = new byte[MAGIC.length];
+        data.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || data.getInt(MAGIC.length) != VERSION) {
+            throw error("Corrupt commit-graph.");
+        }
+        ids = new ObjectIdTable(data, HEADER_LENGTH);
+        recordsStart = HEADER_LENGTH + ids.byteLength();
+    }
+
+    static CommitGraph open(ObjectStore store) {
+        return new CommitGraph(store);
+    }
+
+    static File graphFile(File gitletDir) {
+        return join(gitletDir, "commit-graph");
+    }
+
+    // Write the commit-graph of the current repository.
+    public static void writeCommitGraph() {
+        int count = write(ObjectStore.local());
+        System.out.println("Wrote commit-graph with " + count + " commits.");
+    }
+
+    // Rewrite the commit-graph of STORE with all its commits and return
+    // how many there are.
+    static int write(ObjectStore store) {
+        List<String> sortedIDs = store.listCommits();
+        CommitGraph graph = store.commitGraph();
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < sortedIDs.size(); i += 1) {
+            positions.put(sortedIDs.get(i), i);
+        }
+
+        File gitletDir = store.getGitletDir();
+        try {
+            File temp = Files.createTempFile(gitletDir.toPath(), "tmp_graph_", null).toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sortedIDs.size());
+                ObjectIdTable.write(out, sortedIDs);
+                for (String commitID : sortedIDs) {
+                    List<String> parents = graph.parents(commitID);
+                    for (int i = 0; i < 2; i += 1) {
+                        Integer position = null;
+                        if (i < parents.size()) {
+                            position = positions.get(parents.get(i));
+                        }
+                        out.writeInt((position == null) ? NO_PARENT : position);
+                    }
+                    out.writeInt(graph.generation(commitID));
+                    out.writeLong(graph.time(commitID));
+                }
+            }
+            Files.move(temp.toPath(), graphFile(gitletDir).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        store.reloadCommitGraph();
+        return sortedIDs.size();
+    }
+
+    // Forget what was read about commits outside the file, e.g. after
+    // commits were added to the store.
+    void forgetLooseCommits() {
+        looseParents.clear();
+        looseGenerations.clear();
+    }
+
+    // The parent IDs of a commit, first parent first. A commit that is not
+    // in the store has none; that is not remembered, since it may arrive
+    // later.
+    List<String> parents(String commitID) {
+        int position = find(commitID);
+        if (position >= 0) {
+            List<String> parents = new ArrayList<>(2);
+            for (int i = 0; i < 2; i += 1) {
+                int parent = data.getInt(recordOffset(position) + 4 * i);
+                if (parent != NO_PARENT) {
+                    parents.add(ids.idAt(parent));
+                }
+            }
+            return parents;
+        }
+        List<String> parents = looseParents.get(commitID);
+        if (parents == null) {
+            Commit commit = Commit.findCommit(store, commitID);
+            if (commit == null) {
+                return List.of();
+            }
+            parents = new ArrayList<>(2);
+            if (commit.getParentCommitID() != null) {
+                parents.add(commit.getParentCommitID());
+            }
+            if (commit.getSecondParentCommitID() != null) {
+                parents.add(commit.getSecondParentCommitID());
+            }
+            looseParents.put(commitID, parents);
+        }
+        return parents;
+    }
+
+    // The generation of a commit, computing it for commits outside the file.
+    int generation(String commitID) {
+        int position = find(commitID);
+        if (position >= 0) {
+            return data.getInt(recordOffset(position) + 8);
+        }
+        Integer generation = looseGenerations.get(commitID);
+        if (generation != null) {
+            return generation;
+        }
+        if (!store.hasCommit(commitID)) {
+            // Like a root, but not remembered.
+            return 1;
+        }
+
+        // Without a graph this may walk the whole history, so avoid recursion.
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitID);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            int largest = 0;
+            boolean ready = true;
+            for (String parent : parents(id)) {
+                int parentPosition = find(parent);
+                Integer parentGeneration = (parentPosition >= 0)
+                        ? Integer.valueOf(data.getInt(recordOffset(parentPosition) + 8))
+                        : looseGenerations.get(parent);
+                if (parentGeneration == null && !store.hasCommit(parent)) {
+                    continue;
+                }
+                if (parentGeneration == null) {
+                    stack.push(parent);
+                    ready = false;
+                } else {
+                    largest = Math.max(largest, parentGeneration);
+                }
+            }
+            if (ready) {
+                stack.pop();
+                looseGenerations.put(id, largest + 1);
+            }
+        }
+        return looseGenerations.get(commitID);
+    }
+
+    // The commit time in epoch milliseconds.
+    long time(String commitID) {
+        int position = find(commitID);
+        if (position >= 0) {
+            return data.getLong(recordOffset(position) + 12);
+        }
+        Commit commit = Commit.findCommit(store, commitID);
+        return (commit == null) ? 0 : commit.getTimeStamp().getTime();
+    }
+
+    // Whether ANCESTORID is DESCENDANTID or one of its ancestors. Commits with
+    // a smaller generation than ANCESTORID are not walked past.
+    boolean isAncestor(String ancestorID, String descendantID) {
+        if (ancestorID.equals(descendantID)) {
+            return true;
+        }
+        int minGeneration = generation(ancestorID);
+        Set<String> visited = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(descendantID);
+        while (!stack.isEmpty()) {
+            String commitID = stack.pop();
+            if (commitID.equals(ancestorID)) {
+                return true;
+            }
+            if (!visited.add(commitID) || generation(commitID) <= minGeneration) {
+                continue;
+            }
+            for (String parent : parents(commitID)) {
+                stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    // A best common ancestor of two commits, or null if they have none.
+    // Commits are visited in decreasing generation, so each commit is
+    // reached from all its walked children before it is visited, and the first
+    // commit reached from both sides has the largest generation possible.
+    String mergeBase(String firstID, String secondID) {
+        if (firstID.equals(secondID)) {
+            return firstID;
+        }
+        Map<String, Integer> flags = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparingInt(this::generation).reversed()
+                        .thenComparing(Comparator.naturalOrder()));
+        flags.put(firstID, FROM_FIRST);
+        flags.put(secondID, FROM_SECOND);
+        queue.add(firstID);
+        queue.add(secondID);
+        while (!queue.isEmpty()) {
+            String commitID = queue.poll();
+            int commitFlags = flags.get(commitID);
+            if (commitFlags == (FROM_FIRST | FROM_SECOND)) {
+                return commitID;
+            }
+            for (String parent : parents(commitID)) {
+                Integer parentFlags = flags.get(parent);
+                if (parentFlags == null) {
+                    flags.put(parent, commitFlags);
+                    queue.add(parent);
+                } else {
+                    // The parent has a smaller generation, so it is still queued.
+                    flags.put(parent, parentFlags | commitFlags);
+                }
+            }
+        }
+        return null;
+    }
+
+    private int find(String commitID) {
+        return (ids == null) ? -1 : ids.find(commitID);
+    }
+
+    private int recordOffset(int position) {
+        return recordsStart + position * RECORD_LENGTH;
+    }
+}
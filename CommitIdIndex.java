@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * A sorted index of all commit IDs, so that abbreviated IDs are resolved by
+ * binary search instead of by listing the commits. It is built from the
+ * object store the first time it is needed and then kept up to date by add,
+ * which ObjectStore.indexCommit calls for every commit stored.
+ *
+ * .gitlet/commit-ids is magic "GCID", a version int and an ObjectIdTable.
+ * Commits added since it was written are appended to .gitlet/commit-ids-log
+ * as raw IDs; once the log holds LOG_LIMIT of them, the index is rewritten
+ * with them. The log is appended to and set aside for rewrites through
+ * IndexLogs, so that IDs appended during a rewrite are kept.
+ */
+class CommitIdIndex {
+
+    /** The magic bytes that start the index. */
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'D'};
+    /** The file format version. */
+    private static final int VERSION = 1;
+    /** The length of the magic and version. */
+    private static final int HEADER_LENGTH = 8;
+    /** The number of logged IDs above which the index is rewritten. */
+    private static final int LOG_LIMIT = 4096;
+
+    /** The sorted IDs of the index file. */
+    private final ObjectIdTable ids;
+    /** The IDs of the log. */
+    private final TreeSet<String> logged;
+
+    private CommitIdIndex(MappedByteBuffer data, TreeSet<String> logged) {
+        byte[] magic = new byte[MAGIC.length];
+        data.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || data.getInt(MAGIC.length) != VERSION) {
+            throw error("Corrupt commit ID index.");
+        }
+        ids = new ObjectIdTable(data, HEADER_LENGTH);
+        this.logged = logged;
+    }
+
+    private static File indexFile(ObjectStore store) {
+        return join(store.getGitletDir(), "commit-ids");
+    }
+
+    private static File logFile(ObjectStore store) {
+        return join(store.getGitletDir(), "commit-ids-log");
+    }
+
+    // The commit ID index of STORE, which is built first if it does not exist.
+    static CommitIdIndex open(ObjectStore store) {
+        File indexFile = indexFile(store);
+        if (!indexFile.exists()) {
+            rebuild(store);
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath())) {
+            return new CommitIdIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    readLog(store));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Build the index of STORE from all its commits, e.g. after gc removed some.
+    static void rebuild(ObjectStore store) {
+        // The aside log only holds commits that are stored, so listed.
+        IndexLogs.rewrite(logFile(store), aside -> write(store, store.listCommits()));
+    }
+
+    // Record that STORE now has the commit COMMITID. Nothing is recorded
+    // while STORE has no index, since building one lists all commits.
+    static void add(ObjectStore store, String commitID) {
+        if (!indexFile(store).exists()) {
+            return;
+        }
+        File logFile = logFile(store);
+        IndexLogs.append(logFile, fromHex(commitID));
+        if (logFile.length() >= (long) LOG_LIMIT * ObjectIdTable.ID_LENGTH) {
+            IndexLogs.rewrite(logFile, aside -> {
+                TreeSet<String> all = new TreeSet<>();
+                readLog(aside, all);
+                ObjectIdTable ids = open(store).ids;
+                for (int i = 0; i < ids.size(); i += 1) {
+                    all.add(ids.idAt(i));
+                }
+                write(store, new ArrayList<>(all));
+            });
+        }
+    }
+
+    // The IDs of the logs of STORE.
+    private static TreeSet<String> readLog(ObjectStore store) {
+        TreeSet<String> logged = new TreeSet<>();
+        for (File log : IndexLogs.logs(logFile(store))) {
+            if (log.exists()) {
+                readLog(readContents(log), logged);
+            }
+        }
+        return logged;
+    }
+
+    // Add the IDs of the log contents BYTES to LOGGED; an incomplete last ID
+    // is skipped.
+    private static void readLog(byte[] bytes, TreeSet<String> logged) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+        while (in.remaining() >= id.length) {
+            in.get(id);
+            logged.add(toHex(id));
+        }
+    }
+
+    // Replace the index of STORE with SORTEDIDS. The caller deals with the log.
+    private static void write(ObjectStore store, List<String> sortedIDs) {
+        try {
+            File temp = Files.createTempFile(store.getGitletDir().toPath(),
+                    "tmp_ids_", null).toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                ObjectIdTable.write(out, sortedIDs);
+            }
+            Files.move(temp.toPath(), indexFile(store).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // The commit IDs starting with PREFIX, in order. A prefix that is not
+    // lower-case hex matches nothing.
+    List<String> withPrefix(String prefix) {
+        TreeSet<String> matches = new TreeSet<>();
+        if (prefix.length() > UID_LENGTH || !prefix.matches("[0-9a-f]*")) {
+            return new ArrayList<>(matches);
+        }
+        int[] range = ids.findPrefix(prefix);
+        for (int i = range[0]; i < range[1]; i += 1) {
+            matches.add(ids.idAt(i));
+        }
+        for (String id : logged.tailSet(prefix)) {
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            matches.add(id);
+        }
+        return new ArrayList<>(matches);
+    }
+
+    // The shortest prefix of COMMITID, of at least MINLENGTH characters,
+    // that no other indexed commit ID starts with. Only the IDs next to it
+    // in sorted order need to be compared.
+    String shortestUniquePrefix(String commitID, int minLength) {
+        int length = minLength;
+        List<String> neighbours = new ArrayList<>();
+        int[] range = ids.findPrefix(commitID);
+        // range[0] is where commitID is or would be inserted.
+        int position = range[0];
+        if (position > 0) {
+            neighbours.add(ids.idAt(position - 1));
+        }
+        int next = (range[1] > range[0]) ? range[1] : position;
+        if (next < ids.size()) {
+            neighbours.add(ids.idAt(next));
+        }
+        String lower = logged.lower(commitID);
+        String higher = logged.higher(commitID);
+        if (lower != null) {
+            neighbours.add(lower);
+        }
+        if (higher != null) {
+            neighbours.add(higher);
+        }
+        for (String neighbour : neighbours) {
+            int common = 0;
+            while (common < UID_LENGTH && neighbour.charAt(common) == commitID.charAt(common)) {
+                common += 1;
+            }
+            length = Math.max(length, common + 1);
+        }
+        return commitID.substring(0, Math.min(length, UID_LENGTH));
+    }
+}
@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Repository settings, stored as "key=value" lines in .gitlet/config.
+ */
+public class Config {
+
+    /** Deflate level for new objects: -1 (default), 0 (stored) to 9. */
+    public static final String COMPRESSION_LEVEL = "core.compression";
+    /** Files of at least this many bytes are stored in chunks; 0 disables chunking. */
+    public static final String CHUNK_THRESHOLD = "core.chunkThreshold";
+
+    /** The .gitlet/config file. */
+    private final File configFile;
+    /** The settings read from the config file. */
+    private final Properties properties = new Properties();
+
+    private Config(File gitletDir) {
+        configFile = join(gitletDir, "config");
+        if (configFile.exists()) {
+            try (InputStream in = Files.newInputStream(configFile.toPath())) {
+                properties.load(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    // Load the config of the given .gitlet directory.
+    public static Config load(File gitletDir) {
+        return new Config(gitletDir);
+    }
+
+    // Load the config of the repository in the current working directory.
+    public static Config local() {
+        return load(Repository.GITLET_DIR);
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException excp) {
+            throw error("Bad value for %s: %s", key, value);
+        }
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+        try (OutputStream out = Files.newOutputStream(configFile.toPath())) {
+            properties.store(out, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Print the value of a setting, or change it when a value is given.
+    public static void config(String key, String value) {
+        Config config = local();
+        if (value == null) {
+            String current = config.get(key);
+            if (current != null) {
+                System.out.println(current);
+            }
+            return;
+        }
+        if (key.equals(COMPRESSION_LEVEL)) {
+            int level = parseIntOrExit(value);
+            if (level < -1 || level > 9) {
+                System.out.println("Compression level must be between -1 and 9.");
+                Main.exit(0);
+            }
+        } else if (key.equals(CHUNK_THRESHOLD)) {
+            if (parseIntOrExit(value) < 0) {
+                System.out.println("Chunk threshold must not be negative.");
+                Main.exit(0);
+            }
+        }
+        config.set(key, value);
+    }
+
+    private static int parseIntOrExit(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException excp) {
+            System.out.println("Incorrect operands.");
+            Main.exit(0);
+            return 0;
+        }
+    }
+}
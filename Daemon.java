@@ -0,0 +1,197 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+import static gitlet.Utils.*;
+
+/**
+ * A long-lived process that runs gitlet commands for the repository it was
+ * started in, so that they skip JVM startup and find the object caches, the
+ * opened packs and the commit-graph already loaded. It listens on the Unix
+ * domain socket .gitlet/daemon.sock; Client forwards a command line to it.
+ *
+ * Daemons are per repository: the repository paths are static, so one
+ * process can only serve one. Start gitlet daemon in each repository that
+ * should have one. Client looks for the socket in the .gitlet directory of
+ * its own repository, and runs commands itself where no daemon listens.
+ *
+ * Requests are served one at a time, because commands print to System.out
+ * and use the repository's static paths. Before each request, state read
+ * from files that changed on disk since is dropped (see
+ * ObjectStore.revalidateAll). Cached commits and blobs are never stale,
+ * since they are keyed by their IDs, and the staging area is cached under
+ * its file's modification time.
+ *
+ * Protocol, in DataOutputStream encoding. The client sends the PROTOCOL
+ * version, the canonical path of its .gitlet directory and the arguments
+ * (an int count, then one UTF string each). The daemon answers with a
+ * boolean, false if it serves a different repository, e.g. one the socket
+ * was copied from, in which case the client runs the command itself.
+ * Otherwise it sends frames: FRAME_STDOUT or FRAME_STDERR followed by an int
+ * length and the bytes, and finally FRAME_EXIT followed by the exit status.
+ */
+class Daemon {
+
+    /** The protocol version the client sends first. */
+    static final int PROTOCOL = 2;
+    /** Frame kind: bytes written to standard output. */
+    static final int FRAME_STDOUT = 1;
+    /** Frame kind: bytes written to standard error. */
+    static final int FRAME_STDERR = 2;
+    /** Frame kind: the command finished with the exit status that follows. */
+    static final int FRAME_EXIT = 3;
+
+    /** Whether this process is a daemon serving a request right now. */
+    private static volatile boolean serving = false;
+
+    // The socket of the daemon for the .gitlet directory GITLETDIR.
+    static File socketFile(File gitletDir) {
+        return join(gitletDir, "daemon.sock");
+    }
+
+    static boolean isServing() {
+        return serving;
+    }
+
+    // Serve requests for the current repository until the process is killed.
+    public static void serve() {
+        if (serving) {
+            System.out.println("A daemon is already running.");
+            Main.exit(0);
+        }
+        File socket = socketFile(Repository.GITLET_DIR);
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket.toPath());
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            if (socket.exists() && !isListening(address)) {
+                Files.delete(socket.toPath());
+            }
+            server.bind(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(socket::delete));
+            System.out.println("Serving " + Repository.GITLET_DIR.getCanonicalPath() + ".");
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException excp) {
+                    // The client went away; wait for the next one.
+                }
+            }
+        } catch (IOException excp) {
+            System.out.println("Cannot listen on " + socket.getPath() + ": " + excp.getMessage());
+            Main.exit(0);
+        }
+    }
+
+    // Whether a daemon accepts connections at ADDRESS.
+    static boolean isListening(UnixDomainSocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+        if (in.readInt() != PROTOCOL) {
+            return;
+        }
+        String gitletDir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+        boolean accepted = gitletDir.equals(Repository.GITLET_DIR.getCanonicalPath());
+        out.writeBoolean(accepted);
+        out.flush();
+        if (!accepted) {
+            return;
+        }
+
+        ObjectStore.revalidateAll();
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream frameOut = new PrintStream(new FrameStream(out, FRAME_STDOUT), true);
+        PrintStream frameErr = new PrintStream(new FrameStream(out, FRAME_STDERR), true);
+        int status = 0;
+        System.setOut(frameOut);
+        System.setErr(frameErr);
+        serving = true;
+        try {
+            Main.main(args);
+        } catch (Exit exit) {
+            status = exit.status;
+        } catch (Throwable excp) {
+            excp.printStackTrace();
+            status = 1;
+        } finally {
+            serving = false;
+            frameOut.flush();
+            frameErr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    /** Thrown by Main.exit while serving, to end the request instead of the process. */
+    static class Exit extends RuntimeException {
+        private final int status;
+
+        Exit(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /** Buffers what a command prints and sends it as frames of one kind. */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int kind;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        FrameStream(DataOutputStream out, int kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffer.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.size() == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                out.flush();
+            }
+            buffer.reset();
+        }
+    }
+}
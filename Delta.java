@@ -0,0 +1,169 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * Byte-level deltas between two versions of a blob. A delta starts with the
+ * lengths of the base and of the result as varints, followed by instructions:
+ * INSERT (length, bytes) copies literal bytes, COPY (offset, length) copies a
+ * run of bytes from the base.
+ */
+class Delta {
+
+    /** The instruction that inserts literal bytes. */
+    private static final int INSERT = 0;
+    /** The instruction that copies bytes from the base. */
+    private static final int COPY = 1;
+    /** The length of the blocks of the base that are indexed. */
+    private static final int BLOCK_LENGTH = 16;
+    /** The multiplier of the rolling hash. */
+    private static final int HASH_BASE = 257;
+    /** HASH_BASE to the power BLOCK_LENGTH - 1, used to roll the hash. */
+    private static final int HASH_POWER;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK_LENGTH; i += 1) {
+            power *= HASH_BASE;
+        }
+        HASH_POWER = power;
+    }
+
+    // The delta that turns BASE into TARGET.
+    static byte[] create(byte[] base, byte[] target) {
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_LENGTH <= base.length; offset += BLOCK_LENGTH) {
+            blocks.putIfAbsent(hash(base, offset), offset);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        int insertStart = 0;
+        int position = 0;
+        int hash = (target.length >= BLOCK_LENGTH) ? hash(target, 0) : 0;
+        while (position + BLOCK_LENGTH <= target.length) {
+            Integer candidate = blocks.get(hash);
+            if (candidate != null && matches(base, candidate, target, position)) {
+                // Grow the match backwards into the pending insert and forwards.
+                int start = position;
+                int baseStart = candidate;
+                while (start > insertStart && baseStart > 0
+                        && base[baseStart - 1] == target[start - 1]) {
+                    start -= 1;
+                    baseStart -= 1;
+                }
+                int end = position + BLOCK_LENGTH;
+                int baseEnd = candidate + BLOCK_LENGTH;
+                while (end < target.length && baseEnd < base.length
+                        && base[baseEnd] == target[end]) {
+                    end += 1;
+                    baseEnd += 1;
+                }
+                writeInsert(out, target, insertStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                position = end;
+                insertStart = end;
+                if (position + BLOCK_LENGTH <= target.length) {
+                    hash = hash(target, position);
+                }
+                continue;
+            }
+            if (position + BLOCK_LENGTH < target.length) {
+                hash = (hash - target[position] * HASH_POWER) * HASH_BASE
+                        + target[position + BLOCK_LENGTH];
+            }
+            position += 1;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    // Rebuild the target of DELTA from BASE.
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] cursor = {0};
+        long baseLength = readVarint(delta, cursor);
+        long resultLength = readVarint(delta, cursor);
+        if (baseLength != base.length) {
+            throw error("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) resultLength];
+        int written = 0;
+        while (cursor[0] < delta.length) {
+            int instruction = delta[cursor[0]];
+            cursor[0] += 1;
+            if (instruction == INSERT) {
+                int length = (int) readVarint(delta, cursor);
+                System.arraycopy(delta, cursor[0], result, written, length);
+                cursor[0] += length;
+                written += length;
+            } else if (instruction == COPY) {
+                int offset = (int) readVarint(delta, cursor);
+                int length = (int) readVarint(delta, cursor);
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else {
+                throw error("Corrupt delta.");
+            }
+        }
+        if (written != result.length) {
+            throw error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int offset) {
+        for (int i = 0; i < BLOCK_LENGTH; i += 1) {
+            if (base[baseOffset + i] != target[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_LENGTH; i += 1) {
+            hash = hash * HASH_BASE + bytes[offset + i];
+        }
+        return hash;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(bytes, from, to - from);
+        }
+    }
+
+    // Seven bits per byte, least significant group first.
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // Read a varint at CURSOR[0] and advance the cursor past it.
+    static long readVarint(byte[] bytes, int[] cursor) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = bytes[cursor[0]] & 0xff;
+            cursor[0] += 1;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable map from file names to blob IDs, stored as a hash array mapped
+ * trie. with and without copy only the path from the root to the changed
+ * entry, so a map derived from another shares every other node with it, and
+ * diff skips shared nodes by reference instead of comparing their entries.
+ *
+ * Every node of the trie is a Leaf (one entry), a Collision (entries whose
+ * hashes are equal) or a Branch holding up to 32 children, selected by the
+ * next five bits of the hash. Map methods that would modify the map throw
+ * UnsupportedOperationException.
+ */
+class FileMap extends AbstractMap<String, String> {
+
+    /** The number of hash bits each level of branches consumes. */
+    private static final int BITS = 5;
+    /** The mask of one level's hash bits. */
+    private static final int LEVEL_MASK = (1 << BITS) - 1;
+    /** The map without entries. */
+    private static final FileMap EMPTY = new FileMap(null, 0);
+
+    /** The root node, or null for the empty map. */
+    private final Object root;
+    /** The number of entries. */
+    private final int size;
+
+    private FileMap(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    static FileMap empty() {
+        return EMPTY;
+    }
+
+    // MAP itself if it is a FileMap, otherwise a FileMap with its entries.
+    static FileMap of(Map<String, String> map) {
+        if (map instanceof FileMap) {
+            return (FileMap) map;
+        }
+        FileMap result = EMPTY;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            result = result.with(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int hash = hash((String) key);
+        Object node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.key.equals(key) ? leaf.value : null;
+            }
+            if (node instanceof Collision) {
+                Leaf leaf = ((Collision) node).find((String) key);
+                return (leaf == null) ? null : leaf.value;
+            }
+            node = ((Branch) node).child(bit(hash, shift));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    // This map with KEY mapped to VALUE.
+    FileMap with(String key, String value) {
+        boolean[] added = {false};
+        Object newRoot = put(root, new Leaf(hash(key), key, value), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new FileMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    // This map without KEY.
+    FileMap without(String key) {
+        Object newRoot = remove(root, hash(key), key, 0);
+        return (newRoot == root) ? this : new FileMap(newRoot, size - 1);
+    }
+
+    // This map with CHANGES applied: file names mapped to null are removed.
+    FileMap withChanges(Map<String, String> changes) {
+        FileMap result = this;
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            result = (change.getValue() == null)
+                    ? result.without(change.getKey())
+                    : result.with(change.getKey(), change.getValue());
+        }
+        return result;
+    }
+
+    // The entries that differ in OTHER: their values there, or null if OTHER
+    // does not have them. Nodes the two maps share are not visited.
+    Map<String, String> diff(FileMap other) {
+        Map<String, String> changes = new HashMap<>();
+        diff(root, other.root, 0, changes);
+        return changes;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                List<Map.Entry<String, String>> entries = new ArrayList<>(size);
+                collect(root, entries);
+                return entries.iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static Object put(Object node, Leaf leaf, int shift, boolean[] added) {
+        if (node == null) {
+            added[0] = true;
+            return leaf;
+        }
+        if (node instanceof Leaf) {
+            Leaf existing = (Leaf) node;
+            if (existing.key.equals(leaf.key)) {
+                return existing.value.equals(leaf.value) ? existing : leaf;
+            }
+            added[0] = true;
+            if (existing.hash == leaf.hash) {
+                return new Collision(leaf.hash, new Leaf[] {existing, leaf});
+            }
+            return put(Branch.of(bit(existing.hash, shift), existing), leaf, shift, added);
+        }
+        if (node instanceof Collision) {
+            Collision collision = (Collision) node;
+            if (collision.hash == leaf.hash) {
+                return collision.with(leaf, added);
+            }
+            return put(Branch.of(bit(collision.hash, shift), collision), leaf, shift, added);
+        }
+        Branch branch = (Branch) node;
+        int bit = bit(leaf.hash, shift);
+        Object child = branch.child(bit);
+        Object newChild = put(child, leaf, shift + BITS, added);
+        return (newChild == child) ? branch : branch.with(bit, newChild);
+    }
+
+    private static Object remove(Object node, int hash, String key, int shift) {
+        if (node == null) {
+            return null;
+        }
+        if (node instanceof Leaf) {
+            return ((Leaf) node).key.equals(key) ? null : node;
+        }
+        if (node instanceof Collision) {
+            return ((Collision) node).without(key);
+        }
+        Branch branch = (Branch) node;
+        int bit = bit(hash, shift);
+        Object child = branch.child(bit);
+        Object newChild = remove(child, hash, key, shift + BITS);
+        if (newChild == child) {
+            return branch;
+        }
+        Branch result = branch.with(bit, newChild);
+        if (result.children.length == 0) {
+            return null;
+        }
+        if (result.children.length == 1 && !(result.children[0] instanceof Branch)) {
+            // A lone leaf or collision can move up; its hash still selects
+            // the parent's slot.
+            return result.children[0];
+        }
+        return result;
+    }
+
+    private static void diff(Object node, Object otherNode, int shift,
+                             Map<String, String> changes) {
+        if (node == otherNode) {
+            return;
+        }
+        if (node instanceof Branch && otherNode instanceof Branch) {
+            Branch branch = (Branch) node;
+            Branch otherBranch = (Branch) otherNode;
+            int bits = branch.bitmap | otherBranch.bitmap;
+            while (bits != 0) {
+                int bit = Integer.lowestOneBit(bits);
+                diff(branch.child(bit), otherBranch.child(bit), shift + BITS, changes);
+                bits &= ~bit;
+            }
+            return;
+        }
+        // Different kinds of nodes hold few entries unless one is a branch,
+        // whose entries then all have to be compared anyway.
+        Map<String, String> entries = new HashMap<>();
+        Map<String, String> otherEntries = new HashMap<>();
+        collect(node, entries);
+        collect(otherNode, otherEntries);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String otherValue = otherEntries.get(entry.getKey());
+            if (!entry.getValue().equals(otherValue)) {
+                changes.put(entry.getKey(), otherValue);
+            }
+        }
+        for (Map.Entry<String, String> entry : otherEntries.entrySet()) {
+            if (!entries.containsKey(entry.getKey())) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void collect(Object node, Map<String, String> entries) {
+        List<Map.Entry<String, String>> list = new ArrayList<>();
+        collect(node, list);
+        for (Map.Entry<String, String> entry : list) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void collect(Object node, List<Map.Entry<String, String>> entries) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            entries.add((Leaf) node);
+        } else if (node instanceof Collision) {
+            entries.addAll(List.of(((Collision) node).leaves));
+        } else {
+            for (Object child : ((Branch) node).children) {
+                collect(child, entries);
+            }
+        }
+    }
+
+    private static int hash(String key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    // The bitmap bit of HASH at the level that starts at SHIFT.
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & LEVEL_MASK);
+    }
+
+    /** One entry of the map. */
+    private static class Leaf implements Map.Entry<String, String> {
+        private final int hash;
+        private final String key;
+        private final String value;
+
+        Leaf(int hash, String key, String value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String setValue(String newValue) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Entries with equal hashes. */
+    private static class Collision {
+        private final int hash;
+        private final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        Leaf find(String key) {
+            for (Leaf leaf : leaves) {
+                if (leaf.key.equals(key)) {
+                    return leaf;
+                }
+            }
+            return null;
+        }
+
+        Object with(Leaf leaf, boolean[] added) {
+            for (int i = 0; i < leaves.length; i += 1) {
+                if (leaves[i].key.equals(leaf.key)) {
+                    if (leaves[i].value.equals(leaf.value)) {
+                        return this;
+                    }
+                    Leaf[] newLeaves = leaves.clone();
+                    newLeaves[i] = leaf;
+                    return new Collision(hash, newLeaves);
+                }
+            }
+            added[0] = true;
+            Leaf[] newLeaves = Arrays.copyOf(leaves, leaves.length + 1);
+            newLeaves[leaves.length] = leaf;
+            return new Collision(hash, newLeaves);
+        }
+
+        Object without(String key) {
+            Leaf leaf = find(key);
+            if (leaf == null) {
+                return this;
+            }
+            if (leaves.length == 2) {
+                return (leaves[0] == leaf) ? leaves[1] : leaves[0];
+            }
+            Leaf[] newLeaves = new Leaf[leaves.length - 1];
+            int j = 0;
+            for (Leaf other : leaves) {
+                if (other != leaf) {
+                    newLeaves[j] = other;
+                    j += 1;
+                }
+            }
+            return new Collision(hash, newLeaves);
+        }
+    }
+
+    /** Up to 32 children, one for every bit set in the bitmap, in bit order. */
+    private static class Branch {
+        private final int bitmap;
+        private final Object[] children;
+
+        Branch(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        static Branch of(int bit, Object child) {
+            return new Branch(bit, new Object[] {child});
+        }
+
+        // The child at BIT, or null if there is none.
+        Object child(int bit) {
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            return children[Integer.bitCount(bitmap & (bit - 1))];
+        }
+
+        // A copy with the child at BIT replaced; a null child is removed.
+        Branch with(int bit, Object child) {
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            boolean present = (bitmap & bit) != 0;
+            if (child == null) {
+                if (!present) {
+                    return this;
+                }
+                Object[] newChildren = new Object[children.length - 1];
+                System.arraycopy(children, 0, newChildren, 0, index);
+                System.arraycopy(children, index + 1, newChildren, index,
+                        children.length - index - 1);
+                return new Branch(bitmap & ~bit, newChildren);
+            }
+            if (present) {
+                Object[] newChildren = children.clone();
+                newChildren[index] = child;
+                return new Branch(bitmap, newChildren);
+            }
+            Object[] newChildren = new Object[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildren[index] = child;
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            return new Branch(bitmap | bit, newChildren);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static gitlet.Utils.*;
+
+/**
+ * Implements the gc command, which deletes the objects nothing refers to.
+ *
+ * The mark phase starts from every branch, including the remote-tracking
+ * branches fetch creates, and from the files staged for addition, and
+ * follows parents, trees, blobs and chunks on a pool of threads. Objects
+ * whose files were modified within the grace period gc.gracePeriod (in
+ * seconds, two weeks by default) are kept too, with everything they refer
+ * to: they may belong to a command that is still running, e.g. an add that
+ * has stored its blobs but not yet its stage. Commands that reuse an object
+ * mark it as just used (see ObjectStore.freshen). A packed object is
+ * freshened by touching its pack, so all objects of a pack modified within
+ * the grace period are kept; Repacker dates the packs it writes by their
+ * newest object, so a repack alone does not make old objects recent. gc
+ * --now has no grace period and is only safe while no other command runs.
+ * Branches must point at stored commits, or gc stops before deleting
+ * anything.
+ *
+ * The sweep deletes the loose objects that were not marked, commits first,
+ * and if a pack holds such objects, packs the marked ones anew (see
+ * Repacker.rewrite) and deletes the old packs. Every file is renamed before
+ * it is deleted and its time checked again after the rename, so a
+ * concurrent writer either freshens it in time to keep it, or finds it gone
+ * and writes the object again. Temporary files older than the grace period
+ * go as well. Afterwards the commit-graph, the commit ID and message indexes
+ * and the reachability bitmaps are rebuilt.
+ */
+class GarbageCollector {
+
+    /** The config key of the grace period in seconds. */
+    static final String GRACE_PERIOD = "gc.gracePeriod";
+    /** The default grace period: two weeks. */
+    private static final int DEFAULT_GRACE_PERIOD = 14 * 24 * 60 * 60;
+    /** The prefix of temporary files, which every writer uses. */
+    private static final String TEMP_PREFIX = "tmp_";
+    /** The prefix files are renamed with just before they are deleted. */
+    private static final String DOOMED_PREFIX = "tmp_gc_";
+    /** The object types, in the order their loose objects are swept. */
+    private static final int[] SWEEP_ORDER =
+            {PackFile.TYPE_COMMIT, PackFile.TYPE_TREE, PackFile.TYPE_BLOB};
+
+    /** The store being collected. */
+    private final ObjectStore store;
+    /** The time marking began, in epoch milliseconds. */
+    private final long start;
+    /** Unmarked loose objects modified before this time are deleted. */
+    private final long cutoff;
+    /** The IDs of the objects to keep. */
+    private final Set<String> marked = ConcurrentHashMap.newKeySet();
+    /** The number of objects deleted. */
+    private int removedObjects = 0;
+    /** The number of temporary files deleted. */
+    private int removedTempFiles = 0;
+
+    private GarbageCollector(ObjectStore store, boolean now) {
+        this.store = store;
+        start = System.currentTimeMillis();
+        long grace = now ? 0
+                : Config.load(store.getGitletDir()).getInt(GRACE_PERIOD, DEFAULT_GRACE_PERIOD);
+        cutoff = start - grace * 1000;
+    }
+
+    // Delete the unreachable objects of the current repository, marking on
+    // up to JOBS threads, and report the space reclaimed.
+    public static void gc(boolean now, int jobs) {
+        GarbageCollector collector = new GarbageCollector(ObjectStore.local(), now);
+        long before = storageSize();
+        collector.mark(jobs);
+        collector.sweepLooseObjects();
+        collector.sweepPacks();
+        collector.sweepTempFiles();
+        long reclaimed = before - storageSize();
+
+        ObjectStore store = collector.store;
+        CommitGraph.write(store);
+        CommitIdIndex.rebuild(store);
+        MessageIndex.rebuild(store);
+        if (!store.packs().isEmpty()) {
+            ReachabilityBitmaps.write(store);
+        }
+        System.out.println("Removed " + collector.removedObjects + " objects and "
+                + collector.removedTempFiles + " temporary files, reclaiming "
+                + Math.max(reclaimed, 0) + " bytes.");
+    }
+
+    // Mark the objects reachable from the branches and the stage, and those
+    // reachable from objects modified within the grace period. The history
+    // is walked on the commit-graph; the trees of the commits are then read
+    // on a work-stealing pool.
+    private void mark(int jobs) {
+        CommitGraph graph = store.commitGraph();
+        for (Map.Entry<String, String> head : Remote.heads(store).entrySet()) {
+            if (!store.hasCommit(head.getValue())) {
+                // What it still refers to cannot be told from garbage.
+                System.out.println("Branch " + Branch.decodeBranchName(head.getKey())
+                        + " points at missing commit " + head.getValue() + ".");
+                Main.exit(0);
+            }
+        }
+        Deque<String> commitQueue = new ArrayDeque<>(Remote.heads(store).values());
+        List<Mark> roots = new ArrayList<>();
+        for (String blobID : StagingArea.getStagingArea().getStageForAddition().values()) {
+            roots.add(new Mark(PackFile.TYPE_BLOB, blobID));
+        }
+        for (int type : SWEEP_ORDER) {
+            for (String id : store.listLooseObjects(type)) {
+                if (store.looseFile(type, id).lastModified() >= cutoff) {
+                    addRoot(type, id, commitQueue, roots);
+                }
+            }
+        }
+        for (PackFile pack : store.packs()) {
+            if (pack.getPackFile().lastModified() >= cutoff) {
+                for (int i = 0; i < pack.size(); i += 1) {
+                    addRoot(PackFile.objectType(pack.typeAt(i)), pack.idAt(i),
+                            commitQueue, roots);
+                }
+            }
+        }
+
+        while (!commitQueue.isEmpty()) {
+            String commitID = commitQueue.poll();
+            if (marked.add(commitID)) {
+                roots.add(new Mark(PackFile.TYPE_COMMIT, commitID));
+                commitQueue.addAll(graph.parents(commitID));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(roots)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void addRoot(int type, String id, Deque<String> commitQueue,
+                                List<Mark> roots) {
+        if (type == PackFile.TYPE_COMMIT) {
+            commitQueue.add(id);
+        } else {
+            roots.add(new Mark(type, id));
+        }
+    }
+
+    /** Marks what an object refers to, and the object itself unless it is a commit. */
+    private class Mark extends RecursiveAction {
+        private final int type;
+        private final String id;
+
+        Mark(int type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        protected void compute() {
+            List<Mark> children = new ArrayList<>();
+            if (type == PackFile.TYPE_COMMIT) {
+                Commit commit = Commit.findCommit(store, id);
+                if (commit == null) {
+                    // A missing parent; fsck reports it.
+                    return;
+                }
+                if (commit.getTreeID() != null) {
+                    children.add(new Mark(PackFile.TYPE_TREE, commit.getTreeID()));
+                } else {
+                    for (String blobID : commit.getFileNameToBlobID().values()) {
+                        children.add(new Mark(PackFile.TYPE_BLOB, blobID));
+                    }
+                }
+            } else if (!marked.add(id)) {
+                return;
+            } else if (type == PackFile.TYPE_TREE) {
+                List<String> subtreeIDs = new ArrayList<>();
+                List<String> blobIDs = new ArrayList<>();
+                Tree.children(store, id, subtreeIDs, blobIDs);
+                for (String subtreeID : subtreeIDs) {
+                    children.add(new Mark(PackFile.TYPE_TREE, subtreeID));
+                }
+                for (String blobID : blobIDs) {
+                    children.add(new Mark(PackFile.TYPE_BLOB, blobID));
+                }
+            } else {
+                marked.addAll(store.chunksOf(id));
+            }
+            invokeAll(children);
+        }
+    }
+
+    // Delete the loose objects that were not marked.
+    private void sweepLooseObjects() {
+        for (int type : SWEEP_ORDER) {
+            for (String id : store.listLooseObjects(type)) {
+                if (marked.contains(id)) {
+                    continue;
+                }
+                File file = store.looseFile(type, id);
+                if (remove(List.of(file), cutoff)) {
+                    removedObjects += 1;
+                    if (store.isSharded()) {
+                        // Only succeeds once the shard is empty.
+                        file.getParentFile().delete();
+                    }
+                }
+            }
+        }
+    }
+
+    // If a pack holds objects that were not marked, pack the marked objects
+    // anew and delete the old packs, except those changed since marking
+    // began: a writer has reused one of their objects since.
+    private void sweepPacks() {
+        List<PackFile> oldPacks = new ArrayList<>(store.packs());
+        boolean unmarked = false;
+        for (PackFile pack : oldPacks) {
+            for (int i = 0; i < pack.size() && !unmarked; i += 1) {
+                unmarked = !marked.contains(pack.idAt(i));
+            }
+        }
+        if (!unmarked) {
+            return;
+        }
+        List<File> newPacks = Repacker.rewrite(store, marked::contains);
+        for (PackFile pack : oldPacks) {
+            if (newPacks.contains(pack.getIndexFile())) {
+                continue;
+            }
+            int count = 0;
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (!marked.contains(pack.idAt(i))) {
+                    count += 1;
+                }
+            }
+            // The index goes first, so that no one opens the pack meanwhile.
+            if (remove(List.of(pack.getIndexFile(), pack.getPackFile()), start)) {
+                removedObjects += count;
+            }
+        }
+        store.reloadPacks();
+    }
+
+    // Delete the temporary files older than the grace period, which commands
+    // that were interrupted left behind.
+    private void sweepTempFiles() {
+        List<File> dirs = new ArrayList<>(List.of(Repository.GITLET_DIR,
+                Repository.COMMITS_DIR, Repository.TREES_DIR, Repository.BLOBS_DIR,
+                store.getPacksDir()));
+        if (store.isSharded()) {
+            for (File dir : List.of(Repository.COMMITS_DIR, Repository.TREES_DIR,
+                    Repository.BLOBS_DIR)) {
+                File[] shards = dir.listFiles(File::isDirectory);
+                if (shards != null) {
+                    dirs.addAll(List.of(shards));
+                }
+            }
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles((parent, name) -> name.startsWith(TEMP_PREFIX));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isFile() && file.lastModified() < cutoff && file.delete()) {
+                    removedTempFiles += 1;
+                }
+            }
+        }
+    }
+
+    // Delete FILES unless the last of them was modified at or after SINCE,
+    // and return whether they were deleted. The files are renamed first and
+    // the time is checked after the renames, so a concurrent
+    // ObjectStore.freshen either comes in time and keeps them, or finds them
+    // gone and has its caller write the object again.
+    private static boolean remove(List<File> files, long since) {
+        List<File> renamed = new ArrayList<>();
+        boolean keep = false;
+        try {
+            for (File file : files) {
+                File doomed = join(file.getParentFile(), DOOMED_PREFIX + file.getName());
+                try {
+                    Files.move(file.toPath(), doomed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException excp) {
+                    // Already gone, e.g. removed by another gc.
+                    keep = true;
+                    break;
+                }
+                renamed.add(doomed);
+            }
+            if (!keep && renamed.get(renamed.size() - 1).lastModified() >= since) {
+                keep = true;
+            }
+            if (keep) {
+                for (int i = renamed.size() - 1; i >= 0; i -= 1) {
+                    Files.move(renamed.get(i).toPath(), files.get(i).toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+                return false;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (File doomed : renamed) {
+            doomed.delete();
+        }
+        return true;
+    }
+
+    // The bytes taken by the objects, loose or packed, of the current repository.
+    private static long storageSize() {
+        long size = 0;
+        for (File dir : List.of(Repository.COMMITS_DIR, Repository.TREES_DIR,
+                Repository.BLOBS_DIR, join(Repository.GITLET_DIR, "packs"))) {
+            size += sizeOf(dir);
+        }
+        return size;
+    }
+
+    private static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+}
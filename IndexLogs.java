@@ -0,0 +1,88 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import static gitlet.Utils.*;
+
+/**
+ * The logs that CommitIdIndex and MessageIndex append new commits to between
+ * rewrites of their index files. A rewrite must not lose what is appended
+ * while it runs, so it first renames the log aside (its name plus ".old"),
+ * builds the index from the aside log and then deletes it; appends made
+ * meanwhile start a new log. Readers read both logs. A rewrite that is
+ * interrupted leaves the aside log behind for the next one.
+ *
+ * The log's lock file, its name plus ".lock", has two one-byte regions. The
+ * first is held to append and to rename, so that no append still goes to a
+ * log after it is set aside; the second is held for a whole rewrite.
+ */
+class IndexLogs {
+
+    /** Held with the first region of a lock file, which only excludes other processes. */
+    private static final Object APPEND_LOCK = new Object();
+    /** Held with the second region of a lock file. */
+    private static final Object REWRITE_LOCK = new Object();
+
+    // The log that LOGFILE is renamed to while the index is rewritten.
+    static File asideFile(File logFile) {
+        return join(logFile.getParentFile(), logFile.getName() + ".old");
+    }
+
+    private static FileChannel openLock(File logFile) throws IOException {
+        return FileChannel.open(join(logFile.getParentFile(), logFile.getName() + ".lock")
+                .toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // The logs of LOGFILE in the order they were written: the aside log, if
+    // a rewrite is running or was interrupted, and the log itself.
+    static File[] logs(File logFile) {
+        return new File[] {asideFile(logFile), logFile};
+    }
+
+    // Append RECORD to LOGFILE.
+    static void append(File logFile, byte[] record) {
+        synchronized (APPEND_LOCK) {
+            try (FileChannel lockChannel = openLock(logFile);
+                 FileLock lock = lockChannel.lock(0, 1, false);
+                 OutputStream out = Files.newOutputStream(logFile.toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(record);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    // Rewrite an index with the log LOGFILE set aside. REWRITE is given the
+    // contents of the aside log and writes the index.
+    static void rewrite(File logFile, Consumer<byte[]> rewrite) {
+        synchronized (REWRITE_LOCK) {
+            try (FileChannel lockChannel = openLock(logFile);
+                 FileLock lock = lockChannel.lock(1, 1, false)) {
+                File asideFile = asideFile(logFile);
+                if (!asideFile.exists()) {
+                    synchronized (APPEND_LOCK) {
+                        try (FileLock appendLock = lockChannel.lock(0, 1, false)) {
+                            if (logFile.exists()) {
+                                Files.move(logFile.toPath(), asideFile.toPath(),
+                                        StandardCopyOption.ATOMIC_MOVE);
+                            }
+                        }
+                    }
+                }
+                rewrite.accept(asideFile.exists() ? readContents(asideFile) : new byte[0]);
+                Files.deleteIfExists(asideFile.toPath());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gitlet.Utils.*;
+
+/**
+ * Implements the fsck command, which checks every object of the repository,
+ * loose or packed, and prints each problem as soon as it is found.
+ *
+ * Every commit, tree and chunked blob is read, and the objects it refers
+ * to must exist: the parents and tree of a commit (or the blobs of one that
+ * carries its files itself), the subtrees and blobs of a tree, and the
+ * chunks of a chunked blob. So must the commits of the branches and the
+ * blobs of the stage. With --full, the default, every object is also hashed
+ * again and must match its ID; --quick only checks that objects exist.
+ * Commits written before CommitCodec cannot be hashed again, since their ID
+ * was taken before they were serialized, so they must carry their own ID.
+ *
+ * The objects are checked on a work-stealing pool, in tasks of one fan-out
+ * directory or one range of a pack each, without collecting their IDs
+ * first.
+ */
+class IntegrityChecker {
+
+    /** Pack ranges at most this long are checked by one task. */
+    private static final int PACK_RANGE = 512;
+    /** The number of fan-out directories of a sharded store. */
+    private static final int SHARD_COUNT = 256;
+    /** The object types, in the order they are checked. */
+    private static final int[] TYPES =
+            {PackFile.TYPE_COMMIT, PackFile.TYPE_TREE, PackFile.TYPE_BLOB};
+
+    /** The store being checked. */
+    private final ObjectStore store;
+    /** Whether objects are hashed again. */
+    private final boolean full;
+    /** The number of objects checked. */
+    private final AtomicLong checked = new AtomicLong();
+    /** The number of problems found. */
+    private final AtomicLong problems = new AtomicLong();
+
+    private IntegrityChecker(ObjectStore store, boolean full) {
+        this.store = store;
+        this.full = full;
+    }
+
+    // Check the current repository on up to JOBS threads, hashing every
+    // object again if FULL.
+    public static void fsck(boolean full, int jobs) {
+        IntegrityChecker checker = new IntegrityChecker(ObjectStore.local(), full);
+        ObjectStore store = checker.store;
+        for (Map.Entry<String, String> head : Remote.heads(store).entrySet()) {
+            if (!store.hasCommit(head.getValue())) {
+                checker.report("missing commit " + head.getValue() + ", branch "
+                        + Branch.decodeBranchName(head.getKey()));
+            }
+        }
+        Map<String, String> staged = StagingArea.getStagingArea().getStageForAddition();
+        for (Map.Entry<String, String> file : staged.entrySet()) {
+            if (!store.hasBlob(file.getValue())) {
+                checker.report("missing blob " + file.getValue() + ", staged as "
+                        + file.getKey());
+            }
+        }
+
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int type : TYPES) {
+            if (store.isSharded()) {
+                for (int shard = 0; shard < SHARD_COUNT; shard += 1) {
+                    tasks.add(checker.new CheckLoose(type, String.format("%02x", shard)));
+                }
+            } else {
+                tasks.add(checker.new CheckLoose(type, ""));
+            }
+        }
+        for (PackFile pack : store.packs()) {
+            tasks.add(checker.new CheckPacked(pack, 0, pack.size()));
+        }
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("Checked " + checker.checked.get() + " objects"
+                + (full ? "" : " (quick)") + ", found " + checker.problems.get()
+                + " problems.");
+    }
+
+    /** Checks the loose objects of one type whose IDs start with a prefix. */
+    private class CheckLoose extends RecursiveAction {
+        private final int type;
+        private final String prefix;
+
+        CheckLoose(int type, String prefix) {
+            this.type = type;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            for (String id : store.listLooseObjects(type, prefix)) {
+                check(type, id);
+            }
+        }
+    }
+
+    /** Checks the objects of a pack in a range of positions, split in halves. */
+    private class CheckPacked extends RecursiveAction {
+        private final PackFile pack;
+        private final int from;
+        private final int to;
+
+        CheckPacked(PackFile pack, int from, int to) {
+            this.pack = pack;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PACK_RANGE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CheckPacked(pack, from, middle), new CheckPacked(pack, middle, to));
+                return;
+            }
+            for (int position = from; position < to; position += 1) {
+                int type;
+                try {
+                    type = PackFile.objectType(pack.typeAt(position));
+                } catch (RuntimeException excp) {
+                    checked.incrementAndGet();
+                    report("corrupt object " + pack.idAt(position) + " in "
+                            + pack.getPackFile().getName() + ": " + excp);
+                    continue;
+                }
+                check(type, pack.idAt(position));
+            }
+        }
+    }
+
+    // Check one object and the objects it refers to.
+    private void check(int type, String id) {
+        checked.incrementAndGet();
+        String name = typeName(type) + " " + id;
+        try {
+            if (full && !hashesTo(type, id)) {
+                report("corrupt " + name + ": its content does not match its ID");
+            }
+            List<String> commitIDs = new ArrayList<>();
+            List<String> treeIDs = new ArrayList<>();
+            List<String> blobIDs = new ArrayList<>();
+            if (type == PackFile.TYPE_COMMIT) {
+                Commit commit = Commit.findCommit(store, id);
+                addIfPresent(commitIDs, commit.getParentCommitID());
+                addIfPresent(commitIDs, commit.getSecondParentCommitID());
+                if (commit.getTreeID() != null) {
+                    treeIDs.add(commit.getTreeID());
+                } else {
+                    blobIDs.addAll(commit.getFileNameToBlobID().values());
+                }
+            } else if (type == PackFile.TYPE_TREE) {
+                Tree.children(store, id, treeIDs, blobIDs);
+            } else {
+                blobIDs.addAll(store.chunksOf(id));
+            }
+            checkPresent(PackFile.TYPE_COMMIT, commitIDs, name);
+            checkPresent(PackFile.TYPE_TREE, treeIDs, name);
+            checkPresent(PackFile.TYPE_BLOB, blobIDs, name);
+        } catch (RuntimeException excp) {
+            report("corrupt " + name + ": " + excp);
+        }
+    }
+
+    // Whether the object hashes to its ID again.
+    private boolean hashesTo(int type, String id) {
+        if (type == PackFile.TYPE_TREE) {
+            return sha1((Object) store.readTree(id)).equals(id);
+        }
+        if (type == PackFile.TYPE_COMMIT) {
+            byte[] bytes = store.readCommit(id);
+            if (CommitCodec.isEncoded(bytes)) {
+                return sha1((Object) bytes).equals(id);
+            }
+            return id.equals(deserialize(bytes, Commit.class).getCommitID());
+        }
+        MessageDigest digest = newSha1Digest();
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        try (InputStream in = store.openBlob(id)) {
+            for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+                digest.update(buffer, 0, count);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(digest.digest()).equals(id);
+    }
+
+    private void checkPresent(int type, List<String> ids, String referrer) {
+        for (String id : ids) {
+            if (!store.has(type, id)) {
+                report("missing " + typeName(type) + " " + id + ", referred to by " + referrer);
+            }
+        }
+    }
+
+    private static void addIfPresent(List<String> ids, String id) {
+        if (id != null) {
+            ids.add(id);
+        }
+    }
+
+    private void report(String problem) {
+        problems.incrementAndGet();
+        System.out.println(problem);
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case PackFile.TYPE_COMMIT:
+                return "commit";
+            case PackFile.TYPE_TREE:
+                return "tree";
+            default:
+                return "blob";
+        }
+    }
+}
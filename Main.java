@@ -1,6 +1,11 @@
 package gitlet;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import static gitlet.Repository.*;
 
@@ -15,7 +20,7 @@ public class Main {
     public static void main(String[] args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
-            System.exit(0);
+            exit(0);
         }
         Repository repository = new Repository();
         String firstArg = args[0];
@@ -25,32 +30,36 @@ public class Main {
                 init();
                 break;
             case "add":
-                validateNumAndFormatArgs(args, 2);
-                add(args[1]);
+                validateNumAndFormatArgs(args, Math.max(args.length, 2));
+                add(readPaths(args));
                 break;
             case "commit":
                 validateNumAndFormatArgs(args, 2);
                 commit(args[1]);
                 break;
             case "rm":
-                validateNumAndFormatArgs(args, 2);
-                remove(args[1]);
+                validateNumAndFormatArgs(args, Math.max(args.length, 2));
+                remove(readPaths(args));
                 break;
             case "log":
-                validateNumAndFormatArgs(args, 1);
-                log();
+                validateNumAndFormatArgs(args, args.length == 2 ? 2 : 1);
+                if (args.length == 2 && !args[1].equals("--abbrev")) {
+                    System.out.println("Incorrect operands.");
+                    exit(0);
+                }
+                log(args.length == 2);
                 break;
             case "global-log":
                 validateNumAndFormatArgs(args, 1);
                 globalLog();
                 break;
             case "find":
-                validateNumAndFormatArgs(args, 2);
-                find(args[1]);
+                validateNumAndFormatArgs(args, args.length == 3 ? 3 : 2);
+                find(args.length == 3 ? args[1] : null, args[args.length - 1]);
                 break;
             case "status":
-                validateNumAndFormatArgs(args, 1);
-                status();
+                validateNumAndFormatArgs(args, args.length == 3 ? 3 : 1);
+                status(parseJobs(args, 1));
                 break;
             case "checkout":
                 handleCheckOutCall(args, repository);
@@ -91,39 +100,140 @@ public class Main {
                 validateNumAndFormatArgs(args, 3);
                 pullRemote(args[1], args[2]);
                 break;
+            case "config":
+                validateNumAndFormatArgs(args, args.length == 3 ? 3 : 2);
+                Config.config(args[1], args.length == 3 ? args[2] : null);
+                break;
+            case "repack":
+                validateNumAndFormatArgs(args, args.length == 2 ? 2 : 1);
+                if (args.length == 2 && !args[1].equals("-a")) {
+                    System.out.println("Incorrect operands.");
+                    exit(0);
+                }
+                Repacker.repack(args.length == 2);
+                break;
+            case "gc":
+                validateNumAndFormatArgs(args, args.length == 2 ? 2 : 1);
+                if (args.length == 2 && !args[1].equals("--now")) {
+                    System.out.println("Incorrect operands.");
+                    exit(0);
+                }
+                GarbageCollector.gc(args.length == 2, Runtime.getRuntime().availableProcessors());
+                break;
+            case "fsck":
+                validateNumAndFormatArgs(args, args.length == 2 ? 2 : 1);
+                if (args.length == 2 && !args[1].equals("--quick") && !args[1].equals("--full")) {
+                    System.out.println("Incorrect operands.");
+                    exit(0);
+                }
+                IntegrityChecker.fsck(args.length == 1 || args[1].equals("--full"),
+                        Runtime.getRuntime().availableProcessors());
+                break;
+            case "commit-graph":
+                validateNumAndFormatArgs(args, 1);
+                CommitGraph.writeCommitGraph();
+                break;
+            case "migrate":
+                validateNumAndFormatArgs(args, 1);
+                ObjectStore.migrate();
+                break;
+            case "daemon":
+                validateNumAndFormatArgs(args, 1);
+                Daemon.serve();
+                break;
+            case "serve":
+                validateNumAndFormatArgs(args, args.length == 2 ? 2 : 1);
+                TransferServer.serve(args.length == 2 ? args[1] : null);
+                break;
             default:
                 System.out.println("No command with that name exists.");
-                System.exit(0);
+                exit(0);
         }
     }
 
+    // End the command with STATUS. Inside the daemon this ends the request
+    // instead of the process.
+    public static void exit(int status) {
+        if (Daemon.isServing()) {
+            throw new Daemon.Exit(status);
+        }
+        System.exit(status);
+    }
+
     private static void validateNumAndFormatArgs(String[] args, int argsNumber) {
         if (args.length != argsNumber) {
             System.out.println("Incorrect operands.");
-            System.exit(0);
+            exit(0);
         }
         if (!args[0].equals("init") && !Repository.GITLET_DIR.exists()) {
             System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            exit(0);
+        }
+    }
+
+    // The paths given after the command, where "--stdin" stands for the
+    // lines of standard input.
+    private static List<String> readPaths(String[] args) {
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i < args.length; i += 1) {
+            if (!args[i].equals("--stdin")) {
+                paths.add(args[i]);
+                continue;
+            }
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (!line.isEmpty()) {
+                        paths.add(line);
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return paths;
+    }
+
+    // The value of the option "--jobs N" at ARGS[INDEX], or the number of
+    // processors if the option is absent.
+    private static int parseJobs(String[] args, int index) {
+        if (args.length <= index) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        if (!args[index].equals("--jobs") || args.length <= index + 1) {
+            System.out.println("Incorrect operands.");
+            exit(0);
+        }
+        try {
+            int jobs = Integer.parseInt(args[index + 1]);
+            if (jobs > 0) {
+                return jobs;
+            }
+        } catch (NumberFormatException excp) {
+            // Reported below.
         }
+        System.out.println("Incorrect operands.");
+        exit(0);
+        return 0;
     }
 
     private static void validateCheckOutArgs(String[] args) {
         if (!(args.length == 2 || args.length == 3 || args.length == 4)) {
             System.out.println("Incorrect operands.");
-            System.exit(0);
+            exit(0);
         }
         if (!Repository.GITLET_DIR.exists()) {
             System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            exit(0);
         }
         if (args.length == 3 && !args[1].equals("--")) {
             System.out.println("Incorrect operands.");
-            System.exit(0);
+            exit(0);
         }
         if (args.length == 4 && !args[2].equals("--")) {
             System.out.println("Incorrect operands.");
-            System.exit(0);
+            exit(0);
         }
     }
 
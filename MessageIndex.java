@@ -0,0 +1,349 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static gitlet.Utils.*;
+
+/**
+ * An index of commit messages, so that find does not read every commit.
+ * It is built from all commits the first time it is needed and then kept up
+ * to date by add, which Commit.saveCommit and the remote commands call for
+ * every commit they store.
+ *
+ * .gitlet/message-index is rebuilt from scratch: magic "GMIX", version,
+ * commit count and token entry count as ints, then two tables of entries
+ * [long hash, int commit] sorted by hash, one with the hash of every message
+ * and one with the hash of every token of every message, then a record
+ * [raw ID, int offset] per commit in ID order, then the messages as an int
+ * length and UTF-8 bytes. A token is a lower-cased run of letters and digits.
+ *
+ * Commits added since it was built are appended to .gitlet/message-log as
+ * [raw ID, int length, UTF-8 bytes], which queries read in full. Once the
+ * log is larger than LOG_LIMIT, the index is rebuilt with its entries.
+ * The log is appended to and set aside for rebuilds through IndexLogs, so
+ * that commits appended during a rebuild are kept.
+ */
+class MessageIndex {
+
+    /** The magic bytes that start the index. */
+    private static final byte[] MAGIC = {'G', 'M', 'I', 'X'};
+    /** The file format version. */
+    private static final int VERSION = 1;
+    /** The length of the magic, version and both counts. */
+    private static final int HEADER_LENGTH = 16;
+    /** The length of a hash table entry. */
+    private static final int ENTRY_LENGTH = 12;
+    /** The length of a commit record. */
+    private static final int RECORD_LENGTH = ObjectIdTable.ID_LENGTH + 4;
+    /** The log size above which the index is rebuilt. */
+    private static final long LOG_LIMIT = 256 * 1024;
+    /** The separators between the tokens of a message. */
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /** The mapped index file. */
+    private final MappedByteBuffer data;
+    /** The number of commits in the index file. */
+    private final int count;
+    /** The position of the token table. */
+    private final int tokensStart;
+    /** The number of token table entries. */
+    private final int tokenCount;
+    /** The position of the commit records. */
+    private final int recordsStart;
+    /** The position of the messages. */
+    private final int messagesStart;
+    /** The messages of the commits in the log, by commit ID. */
+    private final Map<String, String> logged;
+
+    private MessageIndex(MappedByteBuffer data, Map<String, String> logged) {
+        this.data = data;
+        this.logged = logged;
+        byte[] magic = new byte[MAGIC.length];
+        data.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || data.getInt(MAGIC.length) != VERSION) {
+            throw error("Corrupt message index.");
+        }
+        count = data.getInt(8);
+        tokenCount = data.getInt(12);
+        tokensStart = HEADER_LENGTH + count * ENTRY_LENGTH;
+        recordsStart = tokensStart + tokenCount * ENTRY_LENGTH;
+        messagesStart = recordsStart + count * RECORD_LENGTH;
+    }
+
+    private static File indexFile(ObjectStore store) {
+        return join(store.getGitletDir(), "message-index");
+    }
+
+    private static File logFile(ObjectStore store) {
+        return join(store.getGitletDir(), "message-log");
+    }
+
+    // The message index of STORE, which is built first if it does not exist.
+    static MessageIndex open(ObjectStore store) {
+        File indexFile = indexFile(store);
+        if (!indexFile.exists()) {
+            rebuild(store);
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath())) {
+            return new MessageIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    readLog(store));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Build the index of STORE from all its commits, e.g. after gc removed some.
+    static void rebuild(ObjectStore store) {
+        // The aside log only holds commits that are stored, so listed.
+        IndexLogs.rewrite(logFile(store), aside -> {
+            Map<String, String> messages = new TreeMap<>();
+            for (String commitID : store.listCommits()) {
+                messages.put(commitID, Commit.findCommit(store, commitID).getMessage());
+            }
+            write(store, messages);
+        });
+    }
+
+    // Record that STORE now has the commit COMMITID with MESSAGE. Nothing is
+    // recorded while STORE has no index, since building one reads all commits.
+    static void add(ObjectStore store, String commitID, String message) {
+        if (!indexFile(store).exists()) {
+            return;
+        }
+        byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(fromHex(commitID));
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        File logFile = logFile(store);
+        IndexLogs.append(logFile, bytes.toByteArray());
+        if (logFile.length() > LOG_LIMIT) {
+            IndexLogs.rewrite(logFile, aside -> {
+                Map<String, String> messages = new TreeMap<>();
+                MessageIndex index = open(store);
+                for (int i = 0; i < index.count; i += 1) {
+                    messages.put(index.commitID(i), index.message(i));
+                }
+                readLog(aside, messages);
+                write(store, messages);
+            });
+        }
+    }
+
+    // The commits of the logs of STORE.
+    private static Map<String, String> readLog(ObjectStore store) {
+        Map<String, String> logged = new TreeMap<>();
+        for (File log : IndexLogs.logs(logFile(store))) {
+            if (log.exists()) {
+                readLog(readContents(log), logged);
+            }
+        }
+        return logged;
+    }
+
+    // Add the commits of the log contents BYTES to LOGGED; an incomplete
+    // last record is skipped.
+    private static void readLog(byte[] bytes, Map<String, String> logged) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        while (in.remaining() >= RECORD_LENGTH) {
+            byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+            in.get(id);
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            logged.put(toHex(id), new String(in.array(), in.position(), length,
+                    StandardCharsets.UTF_8));
+            in.position(in.position() + length);
+        }
+    }
+
+    // Replace the index of STORE with one of MESSAGES, sorted by commit ID.
+    // The caller deals with the log.
+    private static void write(ObjectStore store, Map<String, String> messages) {
+        List<String> commitIDs = new ArrayList<>(messages.keySet());
+        List<long[]> exactEntries = new ArrayList<>();
+        List<long[]> tokenEntries = new ArrayList<>();
+        for (int i = 0; i < commitIDs.size(); i += 1) {
+            String message = messages.get(commitIDs.get(i));
+            exactEntries.add(new long[] {hash(message), i});
+            for (String token : tokens(message)) {
+                tokenEntries.add(new long[] {hash(token), i});
+            }
+        }
+        exactEntries.sort(MessageIndex::compareEntries);
+        tokenEntries.sort(MessageIndex::compareEntries);
+
+        File gitletDir = store.getGitletDir();
+        try {
+            File temp = Files.createTempFile(gitletDir.toPath(), "tmp_messages_", null).toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(commitIDs.size());
+                out.writeInt(tokenEntries.size());
+                for (long[] entry : exactEntries) {
+                    out.writeLong(entry[0]);
+                    out.writeInt((int) entry[1]);
+                }
+                for (long[] entry : tokenEntries) {
+                    out.writeLong(entry[0]);
+                    out.writeInt((int) entry[1]);
+                }
+                int offset = 0;
+                for (String commitID : commitIDs) {
+                    out.write(fromHex(commitID));
+                    out.writeInt(offset);
+                    offset += 4 + messages.get(commitID).getBytes(StandardCharsets.UTF_8).length;
+                }
+                for (String commitID : commitIDs) {
+                    byte[] utf8 = messages.get(commitID).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+            }
+            Files.move(temp.toPath(), indexFile(store).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static int compareEntries(long[] a, long[] b) {
+        int byHash = Long.compare(a[0], b[0]);
+        return (byHash != 0) ? byHash : Long.compare(a[1], b[1]);
+    }
+
+    // The distinct tokens of TEXT.
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase())) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    // The 64-bit FNV-1a hash of the UTF-8 bytes of TEXT.
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // The commits whose message is MESSAGE, in ID order.
+    SortedSet<String> withMessage(String message) {
+        SortedSet<String> result = new TreeSet<>();
+        for (int commit : lookup(HEADER_LENGTH, count, hash(message))) {
+            if (message(commit).equals(message)) {
+                result.add(commitID(commit));
+            }
+        }
+        for (Map.Entry<String, String> entry : logged.entrySet()) {
+            if (entry.getValue().equals(message)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    // The commits whose message contains every token of WORDS, in ID order.
+    SortedSet<String> containing(String words) {
+        Set<String> wanted = tokens(words);
+        SortedSet<String> result = new TreeSet<>();
+        if (wanted.isEmpty()) {
+            return result;
+        }
+        // Candidates come from the first token; the others are checked
+        // against the messages themselves.
+        String first = wanted.iterator().next();
+        for (int commit : lookup(tokensStart, tokenCount, hash(first))) {
+            if (tokens(message(commit)).containsAll(wanted)) {
+                result.add(commitID(commit));
+            }
+        }
+        for (Map.Entry<String, String> entry : logged.entrySet()) {
+            if (tokens(entry.getValue()).containsAll(wanted)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    // The commits with a message in which PATTERN finds a match, in ID order.
+    SortedSet<String> matching(Pattern pattern) {
+        SortedSet<String> result = new TreeSet<>();
+        for (int commit = 0; commit < count; commit += 1) {
+            if (pattern.matcher(message(commit)).find()) {
+                result.add(commitID(commit));
+            }
+        }
+        for (Map.Entry<String, String> entry : logged.entrySet()) {
+            if (pattern.matcher(entry.getValue()).find()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    // The commits of the entries with HASH in the table of ENTRIES entries at START.
+    private List<Integer> lookup(int start, int entries, long hash) {
+        int low = 0;
+        int high = entries;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (data.getLong(start + mid * ENTRY_LENGTH) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<Integer> commits = new ArrayList<>();
+        for (int i = low; i < entries && data.getLong(start + i * ENTRY_LENGTH) == hash; i += 1) {
+            commits.add(data.getInt(start + i * ENTRY_LENGTH + 8));
+        }
+        return commits;
+    }
+
+    private String commitID(int commit) {
+        byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+        data.get(recordsStart + commit * RECORD_LENGTH, id);
+        return toHex(id);
+    }
+
+    private String message(int commit) {
+        int offset = messagesStart
+                + data.getInt(recordsStart + commit * RECORD_LENGTH + ObjectIdTable.ID_LENGTH);
+        byte[] utf8 = new byte[data.getInt(offset)];
+        data.get(offset + 4, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-process cache of decoded objects (commits, blob contents and the
+ * staging area), so that looking up the same object again within a command
+ * is a hash probe instead of a read and a decode. It holds at most
+ * core.objectCacheSize bytes, as estimated by the callers, and evicts the
+ * least recently used objects first. Objects larger than a quarter of the
+ * limit are not cached.
+ *
+ * Running with -Dgitlet.cacheStats=true prints the hit and miss counts to
+ * standard error when the program exits.
+ */
+class ObjectCache {
+
+    /** The config key of the cache size limit in bytes. */
+    static final String SIZE_LIMIT = "core.objectCacheSize";
+    /** The default size limit. */
+    private static final long DEFAULT_SIZE_LIMIT = 64L << 20;
+    /** The cached objects by key, least recently used first. */
+    private static final LinkedHashMap<String, Entry> ENTRIES =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The size limit, read from the config on first use. */
+    private static long sizeLimit = -1;
+    /** The estimated size of the cached objects. */
+    private static long size = 0;
+    /** The number of lookups that found their object. */
+    private static long hits = 0;
+    /** The number of lookups that did not. */
+    private static long misses = 0;
+
+    static {
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                    System.err.println("object cache: " + hits() + " hits, " + misses()
+                            + " misses, " + size() + " bytes")));
+        }
+    }
+
+    // The object cached under KEY, or null.
+    static synchronized Object get(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.value;
+    }
+
+    // Cache VALUE under KEY; ESTIMATEDSIZE is roughly the memory it takes.
+    static synchronized void put(String key, Object value, long estimatedSize) {
+        long limit = sizeLimit();
+        if (estimatedSize > limit / 4) {
+            return;
+        }
+        Entry old = ENTRIES.put(key, new Entry(value, estimatedSize));
+        if (old != null) {
+            size -= old.size;
+        }
+        size += estimatedSize;
+        Iterator<Map.Entry<String, Entry>> eldest = ENTRIES.entrySet().iterator();
+        while (size > limit) {
+            size -= eldest.next().getValue().size;
+            eldest.remove();
+        }
+    }
+
+    static synchronized void remove(String key) {
+        Entry old = ENTRIES.remove(key);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+
+    // Read the size limit from the config again when it is next needed.
+    static synchronized void reloadSizeLimit() {
+        sizeLimit = -1;
+    }
+
+    static synchronized long hits() {
+        return hits;
+    }
+
+    static synchronized long misses() {
+        return misses;
+    }
+
+    static synchronized long size() {
+        return size;
+    }
+
+    private static long sizeLimit() {
+        if (sizeLimit < 0) {
+            sizeLimit = Repository.GITLET_DIR.exists()
+                    ? Config.local().getInt(SIZE_LIMIT, (int) DEFAULT_SIZE_LIMIT)
+                    : DEFAULT_SIZE_LIMIT;
+        }
+        return sizeLimit;
+    }
+
+    /** A cached object and its estimated size. */
+    private static class Entry {
+        private final Object value;
+        private final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
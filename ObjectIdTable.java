@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * A sorted table of raw 20-byte object IDs preceded by a 256-entry fan-out,
+ * read in place from a (usually memory-mapped) buffer. Fan-out entry b holds
+ * the number of IDs whose first byte is at most b, so a lookup only
+ * binary-searches the IDs that share its first byte.
+ */
+class ObjectIdTable {
+
+    /** The length of a raw object ID. */
+    static final int ID_LENGTH = UID_LENGTH / 2;
+    /** The length of the fan-out: 256 big-endian ints. */
+    private static final int FANOUT_LENGTH = 256 * 4;
+
+    /** The buffer holding the table. */
+    private final ByteBuffer buffer;
+    /** The position of the fan-out within the buffer. */
+    private final int start;
+    /** The number of IDs in the table. */
+    private final int size;
+
+    ObjectIdTable(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        size = buffer.getInt(start + FANOUT_LENGTH - 4);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // The number of bytes the table occupies in its buffer.
+    int byteLength() {
+        return byteLength(size);
+    }
+
+    static int byteLength(int size) {
+        return FANOUT_LENGTH + size * ID_LENGTH;
+    }
+
+    // The position of the given hex ID, or -1 if it is not in the table.
+    int find(String id) {
+        if (id.length() != UID_LENGTH) {
+            return -1;
+        }
+        byte[] key = fromHex(id);
+        int position = lowerBound(key);
+        if (position < size && compareAt(position, key) == 0) {
+            return position;
+        }
+        return -1;
+    }
+
+    // The positions [from, to) of the IDs starting with the given hex prefix.
+    int[] findPrefix(String prefix) {
+        String low = prefix + "0".repeat(UID_LENGTH - prefix.length());
+        String high = prefix + "f".repeat(UID_LENGTH - prefix.length());
+        int from = lowerBound(fromHex(low));
+        int to = lowerBound(fromHex(high));
+        if (to < size && compareAt(to, fromHex(high)) == 0) {
+            to += 1;
+        }
+        return new int[] {from, to};
+    }
+
+    String idAt(int position) {
+        byte[] id = new byte[ID_LENGTH];
+        buffer.get(idOffset(position), id);
+        return toHex(id);
+    }
+
+    // The first position whose ID is not less than KEY.
+    private int lowerBound(byte[] key) {
+        int first = key[0] & 0xff;
+        int low = (first == 0) ? 0 : buffer.getInt(start + (first - 1) * 4);
+        int high = buffer.getInt(start + first * 4);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareAt(int position, byte[] key) {
+        int offset = idOffset(position);
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int diff = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private int idOffset(int position) {
+        return start + FANOUT_LENGTH + position * ID_LENGTH;
+    }
+
+    // Write the fan-out and the IDs; SORTEDIDS must be sorted hex IDs.
+    static void write(DataOutput out, List<String> sortedIDs) throws IOException {
+        int[] fanout = new int[256];
+        for (String id : sortedIDs) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int count : fanout) {
+            total += count;
+            out.writeInt(total);
+        }
+        for (String id : sortedIDs) {
+            out.write(fromHex(id));
+        }
+    }
+}
@@ -0,0 +1,981 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Locates the commit, tree and blob objects of a .gitlet directory.
+ * Repositories of format version 2 and above keep every object in a
+ * two-hex-char fan-out directory (blobs/ab/cdef...), so that lookups,
+ * listings and prefix searches only touch one shard. Version 1
+ * repositories keep flat object directories until they are migrated.
+ *
+ * Objects are written in the loose format: a 4-byte magic, an encoding byte
+ * and the payload, which is zlib-compressed unless core.compression is 0.
+ * Objects written before the loose format existed are plain java-serialized
+ * files and stay readable.
+ *
+ * Files of at least core.chunkThreshold bytes (if set) are split by Chunker.
+ * Each chunk is stored as a blob of its own and the file's blob is a
+ * manifest listing them, so unchanged chunks are stored and sent only once.
+ *
+ * The repack command moves objects into packs (see PackFile and Repacker).
+ * Lookups try the packs first and fall back to loose objects.
+ */
+public class ObjectStore {
+
+    /** The format version written by init and migrate. */
+    public static final int FORMAT_VERSION = 2;
+    /** The first format version that uses fan-out directories. */
+    private static final int SHARDED_FORMAT_VERSION = 2;
+    /** The name of the format-version marker inside .gitlet. */
+    private static final String FORMAT_FILE_NAME = "format";
+    /** The length of a fan-out directory name. */
+    private static final int SHARD_LENGTH = 2;
+    /** The magic bytes that start every object in the loose format. */
+    static final byte[] LOOSE_MAGIC = {'G', 'L', 'O', '1'};
+    /** The length of the loose format header: the magic and the encoding byte. */
+    static final int LOOSE_HEADER_LENGTH = LOOSE_MAGIC.length + 1;
+    /** Encoding byte: the payload is stored as is. */
+    static final int ENCODING_STORED = 0;
+    /** Encoding byte: the payload is a zlib stream. */
+    static final int ENCODING_DEFLATE = 1;
+    /** Encoding byte: the payload lists the chunk blobs (raw ID, int length). */
+    static final int ENCODING_CHUNKED = 2;
+    /** The length of a chunk manifest entry. */
+    private static final int MANIFEST_ENTRY_LENGTH = ObjectIdTable.ID_LENGTH + 4;
+    /** The size of the buffers used when streaming objects. */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** Stores that have already been opened, keyed by their .gitlet directory.
+     *  The daemon, the server and worker threads reach it concurrently. */
+    private static final Map<File, ObjectStore> OPENED_STORES = new ConcurrentHashMap<>();
+
+    /** The .gitlet directory this store belongs to. */
+    private final File gitletDir;
+    /** The .gitlet/commits directory. */
+    private final File commitsDir;
+    /** The .gitlet/blobs directory. */
+    private final File blobsDir;
+    /** The .gitlet/trees directory. */
+    private final File treesDir;
+    /** The .gitlet/packs directory. */
+    private final File packsDir;
+    /** The opened packs, loaded on first use. */
+    private List<PackFile> packs;
+    /** The commit-graph, opened on first use. */
+    private CommitGraph commitGraph;
+    /** Whether objects live in fan-out directories. */
+    private final boolean sharded;
+    /** The deflate level for new objects, read from the config on first use. */
+    private Integer compressionLevel;
+    /** The size from which blobs are chunked, read from the config on first use. */
+    private Integer chunkThreshold;
+    /** The modification times of the files the state above was read from. */
+    private String diskStamp;
+
+    private ObjectStore(File gitletDir) {
+        this.gitletDir = gitletDir;
+        commitsDir = join(gitletDir, "commits");
+        blobsDir = join(gitletDir, "blobs");
+        treesDir = join(gitletDir, "trees");
+        packsDir = join(gitletDir, "packs");
+        sharded = readFormatVersion(gitletDir) >= SHARDED_FORMAT_VERSION;
+        diskStamp = diskStamp();
+    }
+
+    // The object store of the repository in the current working directory.
+    public static ObjectStore local() {
+        return open(Repository.GITLET_DIR);
+    }
+
+    // The object store of the given .gitlet directory, e.g. a remote.
+    public static ObjectStore open(File gitletDir) {
+        return OPENED_STORES.computeIfAbsent(gitletDir.getAbsoluteFile(), ObjectStore::new);
+    }
+
+    // Forget the packs, commit-graph and config of every opened store whose
+    // files changed since they were read, and the stores whose format did.
+    // Only processes that run several commands (see Daemon) need this.
+    static void revalidateAll() {
+        Iterator<ObjectStore> stores = OPENED_STORES.values().iterator();
+        while (stores.hasNext()) {
+            ObjectStore store = stores.next();
+            if (!store.gitletDir.exists() || store.sharded
+                    != (readFormatVersion(store.gitletDir) >= SHARDED_FORMAT_VERSION)) {
+                stores.remove();
+                continue;
+            }
+            String stamp = store.diskStamp();
+            if (!stamp.equals(store.diskStamp)) {
+                store.packs = null;
+                store.commitGraph = null;
+                store.compressionLevel = null;
+                store.chunkThreshold = null;
+                store.diskStamp = stamp;
+                ObjectCache.reloadSizeLimit();
+            }
+        }
+    }
+
+    private String diskStamp() {
+        File graphFile = CommitGraph.graphFile(gitletDir);
+        File configFile = join(gitletDir, "config");
+        return packsDir.lastModified() + " " + graphFile.lastModified() + " "
+                + graphFile.length() + " " + configFile.lastModified() + " "
+                + configFile.length();
+    }
+
+    // Repositories written before the marker existed are version 1.
+    public static int readFormatVersion(File gitletDir) {
+        File formatFile = join(gitletDir, FORMAT_FILE_NAME);
+        if (!formatFile.exists()) {
+            return 1;
+        }
+        return Integer.parseInt(readContentsAsString(formatFile).trim());
+    }
+
+    public static void writeFormatVersion(File gitletDir) {
+        writeContents(join(gitletDir, FORMAT_FILE_NAME), String.valueOf(FORMAT_VERSION));
+        OPENED_STORES.remove(gitletDir.getAbsoluteFile());
+    }
+
+    public File getGitletDir() {
+        return gitletDir;
+    }
+
+    public File commitFile(String commitID) {
+        return objectFile(commitsDir, commitID);
+    }
+
+    public File blobFile(String blobID) {
+        return objectFile(blobsDir, blobID);
+    }
+
+    public File treeFile(String treeID) {
+        return objectFile(treesDir, treeID);
+    }
+
+    // Same as commitFile, but also creates the shard directory for writing.
+    public File commitFileForWrite(String commitID) {
+        return prepareForWrite(commitFile(commitID));
+    }
+
+    // Same as blobFile, but also creates the shard directory for writing.
+    public File blobFileForWrite(String blobID) {
+        return prepareForWrite(blobFile(blobID));
+    }
+
+    public boolean hasCommit(String commitID) {
+        return findPack(PackFile.TYPE_COMMIT, commitID) != null || commitFile(commitID).exists();
+    }
+
+    public boolean hasBlob(String blobID) {
+        return findPack(PackFile.TYPE_BLOB, blobID) != null || blobFile(blobID).exists();
+    }
+
+    public boolean hasTree(String treeID) {
+        return findPack(PackFile.TYPE_TREE, treeID) != null || treeFile(treeID).exists();
+    }
+
+    // Whether the store has the object ID of TYPE (see PackFile.TYPE_COMMIT).
+    boolean has(int type, String id) {
+        return findPack(type, id) != null || looseFile(type, id).exists();
+    }
+
+    // Whether the store has the object ID of TYPE, marking its file as just
+    // used if so: gc keeps objects used within its grace period even when
+    // nothing refers to them yet. Writers call this instead of has, so an
+    // object gc removes while it is reused is found missing and written again.
+    boolean freshen(int type, String id) {
+        long now = System.currentTimeMillis();
+        if (looseFile(type, id).setLastModified(now)) {
+            return true;
+        }
+        PackFile pack = findPack(type, id);
+        return pack != null && pack.getPackFile().setLastModified(now);
+    }
+
+    // Objects are content-addressed, so an existing object is never rewritten.
+    public void saveCommit(String commitID, byte[] encodedCommit) {
+        if (!freshen(PackFile.TYPE_COMMIT, commitID)) {
+            writeLooseObject(commitFileForWrite(commitID), encodedCommit);
+            forgetLooseCommits();
+        }
+    }
+
+    public void saveBlob(String blobID, byte[] content) {
+        if (!freshen(PackFile.TYPE_BLOB, blobID)) {
+            writeLooseObject(blobFileForWrite(blobID), content);
+        }
+    }
+
+    public void saveTree(String treeID, byte[] encodedTree) {
+        if (!freshen(PackFile.TYPE_TREE, treeID)) {
+            writeLooseObject(prepareForWrite(treeFile(treeID)), encodedTree);
+        }
+    }
+
+    // Hash SOURCE and store it as a blob in a single streaming pass, so memory
+    // use does not depend on the file size. Returns the blob ID.
+    public String storeBlob(File source) {
+        int chunkThreshold = chunkThreshold();
+        if (chunkThreshold > 0 && source.length() >= chunkThreshold) {
+            return storeChunkedBlob(source);
+        }
+        try {
+            File temp = Files.createTempFile(blobsDir.toPath(), "tmp_", null).toFile();
+            String blobID;
+            try (OutputStream out = openLooseOutput(temp, payloadEncoding(), compressionLevel())) {
+                blobID = hashFile(source, out);
+            }
+            if (freshen(PackFile.TYPE_BLOB, blobID)) {
+                temp.delete();
+            } else {
+                Files.move(temp.toPath(), blobFileForWrite(blobID).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            return blobID;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Split SOURCE into content-defined chunks, store the chunks that are not
+    // stored yet, and store the manifest under the ID of the whole content.
+    // Only one chunk is held in memory at a time.
+    private String storeChunkedBlob(File source) {
+        MessageDigest digest = newSha1Digest();
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        DataOutputStream manifestOut = new DataOutputStream(manifest);
+        byte[] buffer = new byte[Chunker.MAX_CHUNK_LENGTH];
+        int filled = 0;
+        boolean end = false;
+        try (FileChannel channel = FileChannel.open(source.toPath())) {
+            while (true) {
+                while (!end && filled < buffer.length) {
+                    int count = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+                    if (count < 0) {
+                        end = true;
+                    } else {
+                        filled += count;
+                    }
+                }
+                if (filled == 0) {
+                    break;
+                }
+                int length = Chunker.cut(buffer, filled);
+                byte[] chunk = Arrays.copyOf(buffer, length);
+                digest.update(chunk);
+                String chunkID = sha1((Object) chunk);
+                saveBlob(chunkID, chunk);
+                manifestOut.write(fromHex(chunkID));
+                manifestOut.writeInt(length);
+                System.arraycopy(buffer, length, buffer, 0, filled - length);
+                filled -= length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        String blobID = toHex(digest.digest());
+        if (!freshen(PackFile.TYPE_BLOB, blobID)) {
+            writeLooseObject(blobFileForWrite(blobID), manifest.toByteArray(), ENCODING_CHUNKED);
+        }
+        return blobID;
+    }
+
+    // The chunk IDs of a chunked blob, or an empty list for an ordinary blob.
+    public List<String> chunksOf(String blobID) {
+        byte[] manifest = readManifest(blobID);
+        if (manifest == null) {
+            return Collections.emptyList();
+        }
+        List<String> chunkIDs = new ArrayList<>();
+        byte[] chunkID = new byte[ObjectIdTable.ID_LENGTH];
+        for (int offset = 0; offset < manifest.length; offset += MANIFEST_ENTRY_LENGTH) {
+            System.arraycopy(manifest, offset, chunkID, 0, chunkID.length);
+            chunkIDs.add(toHex(chunkID));
+        }
+        return chunkIDs;
+    }
+
+    public boolean isChunked(String blobID) {
+        return readManifest(blobID) != null;
+    }
+
+    // The manifest of a chunked blob, or null for an ordinary blob.
+    private byte[] readManifest(String blobID) {
+        PackFile pack = findPack(PackFile.TYPE_BLOB, blobID);
+        if (pack != null) {
+            int position = pack.find(blobID);
+            if (pack.typeAt(position) != PackFile.TYPE_BLOB
+                    || pack.encodingAt(position) != ENCODING_CHUNKED) {
+                return null;
+            }
+            ByteBuffer payload = pack.storedPayloadAt(position);
+            byte[] manifest = new byte[payload.remaining()];
+            payload.get(manifest);
+            return manifest;
+        }
+        File blobFile = blobFile(blobID);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(blobFile.toPath()),
+                BUFFER_SIZE)) {
+            byte[] header = in.readNBytes(LOOSE_HEADER_LENGTH);
+            if (!isLooseHeader(header) || header[LOOSE_MAGIC.length] != ENCODING_CHUNKED) {
+                return null;
+            }
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // The concatenated content of the chunks listed by MANIFEST, opening each
+    // chunk only when the previous one has been read.
+    // The content of the chunked blob whose manifest is MANIFEST, e.g. one
+    // received over the network that is not stored yet. Every chunk it
+    // lists must be stored.
+    InputStream openManifest(byte[] manifest) {
+        if (manifest.length % MANIFEST_ENTRY_LENGTH != 0) {
+            throw error("Corrupt chunk manifest.");
+        }
+        for (int offset = 0; offset < manifest.length; offset += MANIFEST_ENTRY_LENGTH) {
+            String chunkID = toHex(Arrays.copyOfRange(manifest, offset,
+                    offset + ObjectIdTable.ID_LENGTH));
+            if (!hasBlob(chunkID)) {
+                throw error("Missing chunk %s.", chunkID);
+            }
+        }
+        return openChunks(manifest);
+    }
+
+    private InputStream openChunks(byte[] manifest) {
+        ByteBuffer entries = ByteBuffer.wrap(manifest);
+        Enumeration<InputStream> chunks = new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return entries.hasRemaining();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                byte[] chunkID = new byte[ObjectIdTable.ID_LENGTH];
+                entries.get(chunkID);
+                entries.getInt();
+                return openBlob(toHex(chunkID));
+            }
+        };
+        return new SequenceInputStream(chunks);
+    }
+
+    // The blob ID of the content of FILE, read in fixed-size chunks.
+    public static String hashFile(File file) {
+        try {
+            return hashFile(file, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Hash FILE chunk by chunk, copying every chunk to OUT unless it is null.
+    private static String hashFile(File file, OutputStream out) throws IOException {
+        MessageDigest digest = newSha1Digest();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (channel.read(buffer) != -1) {
+                digest.update(buffer.array(), 0, buffer.position());
+                if (out != null) {
+                    out.write(buffer.array(), 0, buffer.position());
+                }
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    // The encoded commit, which for legacy objects is the whole file.
+    public byte[] readCommit(String commitID) {
+        return readEncoded(PackFile.TYPE_COMMIT, commitID);
+    }
+
+    public byte[] readTree(String treeID) {
+        return readEncoded(PackFile.TYPE_TREE, treeID);
+    }
+
+    private byte[] readEncoded(int type, String id) {
+        PackFile pack = findPack(type, id);
+        if (pack != null) {
+            try (InputStream in = pack.open(pack.find(id))) {
+                return in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        File file = looseFile(type, id);
+        try (InputStream in = openLooseObject(file)) {
+            if (in == null) {
+                return readContents(file);
+            }
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // A stream over the content of a blob; the caller must close it.
+    public InputStream openBlob(String blobID) {
+        PackFile pack = findPack(PackFile.TYPE_BLOB, blobID);
+        if (pack != null) {
+            int position = pack.find(blobID);
+            if (pack.typeAt(position) == PackFile.TYPE_BLOB
+                    && pack.encodingAt(position) == ENCODING_CHUNKED) {
+                return openChunks(readManifest(blobID));
+            }
+            return pack.open(position);
+        }
+        File blobFile = blobFile(blobID);
+        InputStream in = openLooseObject(blobFile);
+        if (in == null) {
+            return new ByteArrayInputStream(readObject(blobFile, Blob.class).getFileContent());
+        }
+        return in;
+    }
+
+    // Copy a commit into DEST as a loose object, keeping its stored encoding.
+    // With LINK, a loose object is hard-linked instead, which only works if
+    // DEST is on the same file system; objects are never changed in place,
+    // so the stores can share the file. The copy methods return the number
+    // of bytes placed in DEST.
+    public long copyCommitTo(ObjectStore dest, String commitID, boolean link) {
+        return copyObjectTo(dest, PackFile.TYPE_COMMIT, commitID, link);
+    }
+
+    // Copy one tree object into DEST, but not the objects it refers to.
+    public long copyTreeTo(ObjectStore dest, String treeID, boolean link) {
+        return copyObjectTo(dest, PackFile.TYPE_TREE, treeID, link);
+    }
+
+    // Copy a blob into DEST as a loose object, keeping its stored encoding.
+    // For a chunked blob, only the chunks DEST does not have yet are copied.
+    public long copyBlobTo(ObjectStore dest, String blobID, boolean link) {
+        long bytes = 0;
+        // The chunks go first, so the manifest never refers to a missing chunk.
+        for (String chunkID : chunksOf(blobID)) {
+            if (!dest.hasBlob(chunkID)) {
+                bytes += copyObjectTo(dest, PackFile.TYPE_BLOB, chunkID, link);
+            }
+        }
+        return bytes + copyObjectTo(dest, PackFile.TYPE_BLOB, blobID, link);
+    }
+
+    // Bytes are moved with FileChannel.transferTo, which the kernel can do
+    // without copying them through this process.
+    private long copyObjectTo(ObjectStore dest, int type, String id, boolean link) {
+        File target = prepareForWrite(dest.looseFile(type, id));
+        PackFile pack = findPack(type, id);
+        if (pack == null && link) {
+            try {
+                Files.createLink(target.toPath(), looseFile(type, id).toPath());
+                // The link shares the time of the source; see freshen.
+                target.setLastModified(System.currentTimeMillis());
+                return target.length();
+            } catch (FileAlreadyExistsException excp) {
+                return 0;
+            } catch (IOException | UnsupportedOperationException excp) {
+                // E.g. a file system without hard links; copy instead.
+            }
+        }
+        try {
+            File temp = Files.createTempFile(target.getParentFile().toPath(), "tmp_", null)
+                    .toFile();
+            if (pack == null) {
+                try (FileChannel in = FileChannel.open(looseFile(type, id).toPath());
+                     FileChannel out = FileChannel.open(temp.toPath(),
+                             StandardOpenOption.WRITE)) {
+                    transfer(in, 0, in.size(), out);
+                }
+            } else if (pack.typeAt(pack.find(id)) == PackFile.TYPE_BLOB_DELTA) {
+                // Deltas only make sense next to their base, so store the whole blob.
+                temp.delete();
+                writeLooseObject(target, pack.content(pack.find(id)));
+                return target.length();
+            } else {
+                int position = pack.find(id);
+                try (FileChannel in = FileChannel.open(pack.getPackFile().toPath());
+                     FileChannel out = FileChannel.open(temp.toPath(),
+                             StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(LOOSE_HEADER_LENGTH);
+                    header.put(LOOSE_MAGIC).put((byte) pack.encodingAt(position)).flip();
+                    out.write(header);
+                    transfer(in, pack.payloadOffsetAt(position),
+                            pack.payloadLengthAt(position), out);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return target.length();
+    }
+
+    // Copy a whole pack into DEST, linking or transferring its files as for
+    // copyObjectTo. The index is placed last, so DEST never opens a partial
+    // pack. Returns the number of bytes placed in DEST.
+    public long copyPackTo(ObjectStore dest, PackFile pack, boolean link) {
+        File packsDir = dest.getPacksDir();
+        packsDir.mkdirs();
+        long bytes = 0;
+        try {
+            for (File file : List.of(pack.getPackFile(), pack.getIndexFile())) {
+                File target = join(packsDir, file.getName());
+                File temp = Files.createTempFile(packsDir.toPath(), "tmp_pack_", null).toFile();
+                boolean linked = false;
+                if (link) {
+                    temp.delete();
+                    try {
+                        Files.createLink(temp.toPath(), file.toPath());
+                        temp.setLastModified(System.currentTimeMillis());
+                        linked = true;
+                    } catch (IOException | UnsupportedOperationException excp) {
+                        // Copy instead, as copyObjectTo does.
+                    }
+                }
+                if (!linked) {
+                    try (FileChannel in = FileChannel.open(file.toPath());
+                         FileChannel out = FileChannel.open(temp.toPath(),
+                                 StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        transfer(in, 0, in.size(), out);
+                    }
+                }
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                bytes += target.length();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        dest.reloadPacks();
+        return bytes;
+    }
+
+    // Transfer LENGTH bytes at POSITION of IN to the end of OUT.
+    private static void transfer(FileChannel in, long position, long length,
+                                 FileChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long count = in.transferTo(position + done, length - done, out);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of " + in);
+            }
+            done += count;
+        }
+    }
+
+    // Store PAYLOAD, already in ENCODING, as a loose object, e.g. one received
+    // over the network that is too large for a pack.
+    void saveStoredObject(int type, String id, int encoding, InputStream payload) {
+        File target = prepareForWrite(looseFile(type, id));
+        try {
+            File temp = Files.createTempFile(target.getParentFile().toPath(), "tmp_", null)
+                    .toFile();
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), BUFFER_SIZE)) {
+                out.write(LOOSE_MAGIC);
+                out.write(encoding);
+                payload.transferTo(out);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Add a newly stored commit to the indexes that list commits.
+    void indexCommit(String commitID, String message) {
+        CommitIdIndex.add(this, commitID);
+        MessageIndex.add(this, commitID, message);
+    }
+
+    // All commit IDs, loose or packed, in lexicographic order.
+    public List<String> listCommits() {
+        return findCommitsWithPrefix("");
+    }
+
+    // All blob IDs, loose or packed, in lexicographic order.
+    public List<String> listBlobs() {
+        return listObjects(PackFile.TYPE_BLOB, blobsDir, "");
+    }
+
+    // Commit IDs starting with the given prefix, in lexicographic order.
+    public List<String> findCommitsWithPrefix(String prefix) {
+        return listObjects(PackFile.TYPE_COMMIT, commitsDir, prefix);
+    }
+
+    private List<String> listObjects(int type, File dir, String prefix) {
+        // A prefix that is not lower-case hex matches nothing.
+        if (prefix.length() > UID_LENGTH || !prefix.matches("[0-9a-f]*")) {
+            return new ArrayList<>();
+        }
+        List<String> looseIDs = listLooseObjects(dir, prefix);
+        if (packs().isEmpty()) {
+            return looseIDs;
+        }
+        TreeSet<String> ids = new TreeSet<>(looseIDs);
+        for (PackFile pack : packs()) {
+            int[] range = pack.findPrefix(prefix);
+            for (int position = range[0]; position < range[1]; position += 1) {
+                if (PackFile.objectType(pack.typeAt(position)) == type) {
+                    ids.add(pack.idAt(position));
+                }
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    File looseFile(int type, String id) {
+        return objectFile(objectDir(type), id);
+    }
+
+    // The IDs of the loose objects of the given type, in lexicographic order.
+    List<String> listLooseObjects(int type) {
+        return listLooseObjects(objectDir(type), "");
+    }
+
+    // The same for the IDs starting with PREFIX; with a prefix as long as a
+    // fan-out directory name, only that directory is listed.
+    List<String> listLooseObjects(int type, String prefix) {
+        return listLooseObjects(objectDir(type), prefix);
+    }
+
+    private File objectDir(int type) {
+        switch (type) {
+            case PackFile.TYPE_COMMIT:
+                return commitsDir;
+            case PackFile.TYPE_TREE:
+                return treesDir;
+            default:
+                return blobsDir;
+        }
+    }
+
+    File getPacksDir() {
+        return packsDir;
+    }
+
+    boolean isSharded() {
+        return sharded;
+    }
+
+    List<PackFile> packs() {
+        if (packs == null) {
+            packs = PackFile.openAll(packsDir);
+        }
+        return packs;
+    }
+
+    // Open the packs and read the config now, so that threads storing
+    // objects at the same time only read state that is already set.
+    void prepareForThreads() {
+        packs();
+        compressionLevel();
+        chunkThreshold();
+    }
+
+    // Forget the opened packs, e.g. after packs were added or removed.
+    void reloadPacks() {
+        packs = null;
+    }
+
+    CommitGraph commitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.open(this);
+        }
+        return commitGraph;
+    }
+
+    // Forget what the commit-graph read about commits outside its file,
+    // once commits were added.
+    void forgetLooseCommits() {
+        if (commitGraph != null) {
+            commitGraph.forgetLooseCommits();
+        }
+    }
+
+    // Forget the open commit-graph after it has been rewritten.
+    void reloadCommitGraph() {
+        commitGraph = null;
+    }
+
+    // The pack holding the object, or null if it is not packed.
+    PackFile findPack(int type, String id) {
+        for (PackFile pack : packs()) {
+            int position = pack.find(id);
+            if (position >= 0 && PackFile.objectType(pack.typeAt(position)) == type) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    // The content of a blob.
+    byte[] readBlob(String blobID) {
+        try (InputStream in = openBlob(blobID)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // The encoding byte that encodePayload produces.
+    int payloadEncoding() {
+        return (compressionLevel() == 0) ? ENCODING_STORED : ENCODING_DEFLATE;
+    }
+
+    // RAW encoded at the configured compression level.
+    byte[] encodePayload(byte[] raw) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int level = compressionLevel();
+        try (OutputStream out = (level == 0) ? payload : deflating(payload, level)) {
+            out.write(raw);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return payload.toByteArray();
+    }
+
+    private int compressionLevel() {
+        if (compressionLevel == null) {
+            compressionLevel = Config.load(gitletDir)
+                    .getInt(Config.COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION);
+        }
+        return compressionLevel;
+    }
+
+    private int chunkThreshold() {
+        if (chunkThreshold == null) {
+            chunkThreshold = Config.load(gitletDir).getInt(Config.CHUNK_THRESHOLD, 0);
+        }
+        return chunkThreshold;
+    }
+
+    // Write to a temporary file next to the target and rename it into place,
+    // so that readers never see a partially written object.
+    private void writeLooseObject(File target, byte[] payload) {
+        writeLooseObject(target, payload, payloadEncoding());
+    }
+
+    // Write PAYLOAD with the given encoding; only ENCODING_DEFLATE compresses it.
+    private void writeLooseObject(File target, byte[] payload, int encoding) {
+        try {
+            File temp = Files.createTempFile(target.getParentFile().toPath(), "tmp_", null)
+                    .toFile();
+            try (OutputStream out = openLooseOutput(temp, encoding, compressionLevel())) {
+                out.write(payload);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Open FILE for writing and write the loose header for ENCODING.
+    private static OutputStream openLooseOutput(File file, int encoding,
+                                                int level) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()),
+                BUFFER_SIZE);
+        out.write(LOOSE_MAGIC);
+        out.write(encoding);
+        if (encoding != ENCODING_DEFLATE) {
+            return out;
+        }
+        return deflating(out, level);
+    }
+
+    // Open the payload of a loose object, or return null if FILE is a legacy
+    // java-serialized object. Chunked blobs are opened as their whole content.
+    private InputStream openLooseObject(File file) {
+        try {
+            InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()),
+                    BUFFER_SIZE);
+            byte[] header = in.readNBytes(LOOSE_HEADER_LENGTH);
+            if (!isLooseHeader(header)) {
+                in.close();
+                return null;
+            }
+            switch (header[LOOSE_MAGIC.length]) {
+                case ENCODING_STORED:
+                    return in;
+                case ENCODING_DEFLATE:
+                    return inflating(in);
+                case ENCODING_CHUNKED:
+                    try (in) {
+                        return openChunks(in.readAllBytes());
+                    }
+                default:
+                    in.close();
+                    throw error("Unknown encoding in object %s.", file.getName());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    static boolean isLooseHeader(byte[] header) {
+        return header.length == LOOSE_HEADER_LENGTH
+                && Arrays.equals(header, 0, LOOSE_MAGIC.length, LOOSE_MAGIC, 0, LOOSE_MAGIC.length);
+    }
+
+    // A zlib stream over OUT at the given level; closing it releases the deflater.
+    static OutputStream deflating(OutputStream out, int level) {
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    // Inflate the zlib stream IN; closing it releases the inflater.
+    static InputStream inflating(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private File objectFile(File dir, String id) {
+        if (!sharded || id.length() <= SHARD_LENGTH) {
+            return join(dir, id);
+        }
+        return join(dir, id.substring(0, SHARD_LENGTH), id.substring(SHARD_LENGTH));
+    }
+
+    private static File prepareForWrite(File objectFile) {
+        File parent = objectFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        return objectFile;
+    }
+
+    private List<String> listLooseObjects(File dir, String prefix) {
+        if (!sharded) {
+            List<String> matches = new ArrayList<>();
+            for (String id : plainFilenamesIn(dir)) {
+                if (id.length() == UID_LENGTH && id.startsWith(prefix)) {
+                    matches.add(id);
+                }
+            }
+            return matches;
+        }
+
+        List<String> ids = new ArrayList<>();
+        if (prefix.length() >= SHARD_LENGTH) {
+            // Only the shard named by the prefix can hold matches.
+            String shard = prefix.substring(0, SHARD_LENGTH);
+            addShardObjects(ids, dir, shard, prefix.substring(SHARD_LENGTH));
+            return ids;
+        }
+        String[] shards = dir.list();
+        if (shards == null) {
+            return ids;
+        }
+        Arrays.sort(shards);
+        for (String shard : shards) {
+            if (shard.length() == SHARD_LENGTH && shard.startsWith(prefix)) {
+                addShardObjects(ids, dir, shard, "");
+            }
+        }
+        return ids;
+    }
+
+    // Names are listed without stat-ing each entry; anything that is not an
+    // object name (e.g. a temporary file) is skipped by its length.
+    private static void addShardObjects(List<String> ids, File dir,
+                                        String shard, String rest) {
+        String[] names = join(dir, shard).list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.length() == UID_LENGTH - SHARD_LENGTH && name.startsWith(rest)) {
+                ids.add(shard + name);
+            }
+        }
+    }
+
+    // Move the objects of a flat (version 1) repository into fan-out directories.
+    // Objects are renamed, not copied, and the format marker is only written
+    // once every object has been moved, so an interrupted migration can be rerun.
+    public static void migrate() {
+        File gitletDir = Repository.GITLET_DIR;
+        if (readFormatVersion(gitletDir) >= FORMAT_VERSION) {
+            System.out.println("Repository is already in the current format.");
+            Main.exit(0);
+        }
+        int moved = migrateDir(Repository.COMMITS_DIR) + migrateDir(Repository.BLOBS_DIR)
+                + migrateDir(Repository.TREES_DIR);
+        writeFormatVersion(gitletDir);
+        System.out.println("Migrated " + moved + " objects to format version "
+                + FORMAT_VERSION + ".");
+    }
+
+    private static int migrateDir(File dir) {
+        int moved = 0;
+        for (String id : plainFilenamesIn(dir)) {
+            if (id.length() != UID_LENGTH) {
+                continue;
+            }
+            File shardDir = join(dir, id.substring(0, SHARD_LENGTH));
+            shardDir.mkdir();
+            File target = join(shardDir, id.substring(SHARD_LENGTH));
+            if (!join(dir, id).renameTo(target)) {
+                throw error("Could not move object %s.", id);
+            }
+            moved += 1;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,284 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * A read-only pack: one data file (pack-X.pack) holding many objects back to
+ * back, and an index (pack-X.idx) mapping sorted object IDs to offsets.
+ * Both files are memory-mapped, so finding and reading a packed object is a
+ * binary search and a buffer read instead of an open/read/close per object.
+ *
+ * Pack data: magic "GPAK", version, object count, then for every object a
+ * type byte, an encoding byte (as for loose objects), the payload length as
+ * a long, and the payload. The payload of a delta entry is the raw ID of its
+ * base, which is in the same pack, followed by the encoded Delta.
+ * Index: magic "GIDX", version, object count, an ObjectIdTable of the IDs,
+ * then the offset of each object's entry as a long, in ID order.
+ */
+class PackFile {
+
+    /** Object type of a commit. */
+    static final int TYPE_COMMIT = 1;
+    /** Object type of a blob. */
+    static final int TYPE_BLOB = 2;
+    /** Entry type of a blob stored as a delta against another blob. */
+    static final int TYPE_BLOB_DELTA = 3;
+    /** Object type of a tree. */
+    static final int TYPE_TREE = 4;
+
+    /** The magic bytes that start a pack data file. */
+    static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    /** The magic bytes that start a pack index. */
+    static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    /** The pack format version. */
+    static final int VERSION = 1;
+    /** The length of the magic, version and count that start both files. */
+    static final int HEADER_LENGTH = 12;
+    /** The length of an entry header: type, encoding and payload length. */
+    static final int ENTRY_HEADER_LENGTH = 10;
+    /** The total size of the reconstructed blobs kept in BASE_CACHE. */
+    private static final long BASE_CACHE_LIMIT = 32L << 20;
+    /** Recently reconstructed delta blobs and bases, by ID, least recently used first. */
+    private static final LinkedHashMap<String, byte[]> BASE_CACHE =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The total length of the blobs in BASE_CACHE. */
+    private static long baseCacheSize = 0;
+
+    /** The pack data file. */
+    private final File packFile;
+    /** The pack index file. */
+    private final File indexFile;
+    /** The mapped pack data. */
+    private final MappedByteBuffer data;
+    /** The mapped pack index. */
+    private final MappedByteBuffer index;
+    /** The sorted IDs inside the index. */
+    private final ObjectIdTable ids;
+    /** The position of the offset table inside the index. */
+    private final int offsetsStart;
+
+    private PackFile(File indexFile) {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        packFile = join(indexFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+        index = map(indexFile);
+        data = map(packFile);
+        checkHeader(index, INDEX_MAGIC, indexFile);
+        checkHeader(data, PACK_MAGIC, packFile);
+        ids = new ObjectIdTable(index, HEADER_LENGTH);
+        offsetsStart = HEADER_LENGTH + ids.byteLength();
+    }
+
+    // Open every pack in PACKSDIR that has an index.
+    static List<PackFile> openAll(File packsDir) {
+        List<PackFile> packs = new ArrayList<>();
+        String[] names = packsDir.list();
+        if (names == null) {
+            return packs;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                packs.add(new PackFile(join(packsDir, name)));
+            }
+        }
+        return packs;
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    // The position of the object in this pack, or -1 if it is not packed here.
+    int find(String id) {
+        return ids.find(id);
+    }
+
+    // The positions [from, to) of the objects whose IDs start with PREFIX.
+    int[] findPrefix(String prefix) {
+        return ids.findPrefix(prefix);
+    }
+
+    String idAt(int position) {
+        return ids.idAt(position);
+    }
+
+    // The entry type, which is TYPE_BLOB_DELTA for deltas.
+    int typeAt(int position) {
+        return data.get(entryOffset(position));
+    }
+
+    // The type of the object stored by an entry of type ENTRYTYPE.
+    static int objectType(int entryType) {
+        return (entryType == TYPE_BLOB_DELTA) ? TYPE_BLOB : entryType;
+    }
+
+    // The ID of the base of the delta at POSITION.
+    String deltaBaseAt(int position) {
+        byte[] baseID = new byte[ObjectIdTable.ID_LENGTH];
+        storedPayloadAt(position).get(baseID);
+        return toHex(baseID);
+    }
+
+    int encodingAt(int position) {
+        return data.get(entryOffset(position) + 1);
+    }
+
+    long payloadLengthAt(int position) {
+        return data.getLong(entryOffset(position) + 2);
+    }
+
+    // The position of the payload in the pack data file.
+    long payloadOffsetAt(int position) {
+        return entryOffset(position) + ENTRY_HEADER_LENGTH;
+    }
+
+    // The payload as stored, i.e. still compressed if its encoding says so.
+    ByteBuffer storedPayloadAt(int position) {
+        int offset = entryOffset(position) + ENTRY_HEADER_LENGTH;
+        return data.slice(offset, (int) payloadLengthAt(position));
+    }
+
+    // A stream over the raw (decoded) payload of an object.
+    InputStream open(int position) {
+        if (typeAt(position) == TYPE_BLOB_DELTA) {
+            return new ByteArrayInputStream(content(position));
+        }
+        return decode(storedPayloadAt(position), encodingAt(position));
+    }
+
+    // The content of a blob, reconstructing delta chains through BASE_CACHE so
+    // that walking recent history does not inflate the same chain again.
+    byte[] content(int position) {
+        String id = idAt(position);
+        byte[] content = cachedBase(id);
+        if (content != null) {
+            return content;
+        }
+        if (typeAt(position) != TYPE_BLOB_DELTA) {
+            content = readAll(decode(storedPayloadAt(position), encodingAt(position)));
+        } else {
+            ByteBuffer stored = storedPayloadAt(position);
+            byte[] baseID = new byte[ObjectIdTable.ID_LENGTH];
+            stored.get(baseID);
+            int basePosition = find(toHex(baseID));
+            if (basePosition < 0) {
+                throw error("Missing delta base for %s in pack %s.", id, packFile.getName());
+            }
+            byte[] delta = readAll(decode(stored.slice(), encodingAt(position)));
+            content = Delta.apply(content(basePosition), delta);
+        }
+        cacheBase(id, content);
+        return content;
+    }
+
+    private static synchronized byte[] cachedBase(String id) {
+        return BASE_CACHE.get(id);
+    }
+
+    private static synchronized void cacheBase(String id, byte[] content) {
+        if (content.length > BASE_CACHE_LIMIT / 4 || BASE_CACHE.containsKey(id)) {
+            return;
+        }
+        BASE_CACHE.put(id, content);
+        baseCacheSize += content.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = BASE_CACHE.entrySet().iterator();
+        while (baseCacheSize > BASE_CACHE_LIMIT) {
+            baseCacheSize -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) {
+        try (in) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private InputStream decode(ByteBuffer stored, int encoding) {
+        InputStream in = new ByteBufferInputStream(stored);
+        switch (encoding) {
+            case ObjectStore.ENCODING_STORED:
+            case ObjectStore.ENCODING_CHUNKED:
+                return in;
+            case ObjectStore.ENCODING_DEFLATE:
+                return ObjectStore.inflating(in);
+            default:
+                throw error("Unknown encoding in pack %s.", packFile.getName());
+        }
+    }
+
+    private int entryOffset(int position) {
+        return (int) index.getLong(offsetsStart + position * 8);
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buffer, byte[] magic, File file) {
+        byte[] header = new byte[magic.length];
+        buffer.get(0, header);
+        if (!Arrays.equals(header, magic) || buffer.getInt(magic.length) != VERSION) {
+            throw error("Corrupt pack file %s.", file.getName());
+        }
+    }
+
+    /** An input stream over the remaining bytes of a buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
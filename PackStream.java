@@ -0,0 +1,372 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static gitlet.Utils.*;
+
+/**
+ * The objects of one network transfer, sent as a single stream that the
+ * receiver writes into one new pack as it reads it (see TransferServer).
+ *
+ * Stream: the number of objects as an int, then for every object a pack
+ * entry (see PackFile) preceded by the raw object ID: the ID, the type byte,
+ * the encoding byte, the payload length as a long, and the payload. Blobs
+ * come first, chunks before their manifests, then trees, then commits.
+ * Objects are sent in the encoding they are stored with, except deltas,
+ * which are sent whole since their base may not be sent.
+ *
+ * The receiver trusts no ID it is sent: commits and trees are read whole and
+ * hashed before they are stored, and blobs are hashed as they are stored.
+ * Blobs go into a pack of their own, and the manifests of chunked blobs are
+ * held back until it is in place; then the chunks each manifest lists are
+ * hashed together, and the manifests are stored ahead of the trees. An
+ * object that does not match its ID, or has an unknown encoding, fails the
+ * whole transfer, and the pack being written is deleted.
+ */
+class PackStream {
+
+    /** The store objects are sent from or received into. */
+    private final ObjectStore store;
+    /** The number of objects sent, or received and stored. */
+    private int objectCount = 0;
+    /** The number of payload bytes sent or received. */
+    private long byteCount = 0;
+
+    PackStream(ObjectStore store) {
+        this.store = store;
+    }
+
+    // The counts of the transfer, e.g. for -Dgitlet.transferStats.
+    String stats() {
+        return objectCount + " objects, " + byteCount + " bytes";
+    }
+
+    // Send the objects OBJECTS, by type as ReachabilityBitmaps.objectsBetween
+    // lists them. Chunks of the blobs are added.
+    void send(Map<Integer, List<String>> objects, DataOutputStream out) throws IOException {
+        Map<String, Integer> entries = new LinkedHashMap<>();
+        for (String blobID : objects.get(PackFile.TYPE_BLOB)) {
+            for (String chunkID : store.chunksOf(blobID)) {
+                entries.put(chunkID, PackFile.TYPE_BLOB);
+            }
+            entries.put(blobID, PackFile.TYPE_BLOB);
+        }
+        for (String treeID : objects.get(PackFile.TYPE_TREE)) {
+            entries.put(treeID, PackFile.TYPE_TREE);
+        }
+        for (String commitID : objects.get(PackFile.TYPE_COMMIT)) {
+            entries.put(commitID, PackFile.TYPE_COMMIT);
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            byteCount += sendObject(entry.getValue(), entry.getKey(), out);
+            objectCount += 1;
+        }
+        out.flush();
+    }
+
+    // Send one object and return its payload length.
+    private long sendObject(int type, String id, DataOutputStream out) throws IOException {
+        PackFile pack = store.findPack(type, id);
+        if (pack != null) {
+            int position = pack.find(id);
+            if (pack.typeAt(position) == PackFile.TYPE_BLOB_DELTA) {
+                return sendRaw(type, id, pack.content(position), out);
+            }
+            ByteBuffer payload = pack.storedPayloadAt(position);
+            startEntry(out, type, id, pack.encodingAt(position), payload.remaining());
+            byte[] chunk = new byte[ObjectStore.BUFFER_SIZE];
+            while (payload.hasRemaining()) {
+                int count = Math.min(chunk.length, payload.remaining());
+                payload.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+            return pack.payloadLengthAt(position);
+        }
+
+        File file = store.looseFile(type, id);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()),
+                ObjectStore.BUFFER_SIZE)) {
+            byte[] header = in.readNBytes(ObjectStore.LOOSE_HEADER_LENGTH);
+            if (ObjectStore.isLooseHeader(header)) {
+                long payloadLength = file.length() - ObjectStore.LOOSE_HEADER_LENGTH;
+                startEntry(out, type, id, header[ObjectStore.LOOSE_MAGIC.length], payloadLength);
+                if (in.transferTo(out) != payloadLength) {
+                    throw error("Object %s changed while it was sent.", id);
+                }
+                return payloadLength;
+            }
+        }
+        byte[] raw = (type == PackFile.TYPE_BLOB)
+                ? readObject(file, Blob.class).getFileContent()
+                : readContents(file);
+        return sendRaw(type, id, raw, out);
+    }
+
+    private long sendRaw(int type, String id, byte[] raw,
+                         DataOutputStream out) throws IOException {
+        byte[] payload = store.encodePayload(raw);
+        startEntry(out, type, id, store.payloadEncoding(), payload.length);
+        out.write(payload);
+        return payload.length;
+    }
+
+    private static void startEntry(DataOutputStream out, int type, String id, int encoding,
+                                   long payloadLength) throws IOException {
+        out.write(fromHex(id));
+        out.writeByte(type);
+        out.writeByte(encoding);
+        out.writeLong(payloadLength);
+    }
+
+    // Read a stream into the store: the objects it lacks go into a new pack,
+    // or loose if they are too large for one. Returns the IDs of the commits
+    // received, which the caller still has to index. Throws a
+    // GitletException if an object does not match its ID.
+    List<String> receive(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        PackWriter blobWriter = new PackWriter(store.getPacksDir());
+        PackWriter writer = new PackWriter(store.getPacksDir());
+        try {
+            List<String> commitIDs = receiveObjects(in, count, blobWriter, writer);
+            writer.finish();
+            store.reloadPacks();
+            store.forgetLooseCommits();
+            return commitIDs;
+        } catch (IOException | RuntimeException excp) {
+            blobWriter.abort();
+            writer.abort();
+            throw excp;
+        }
+    }
+
+    private List<String> receiveObjects(DataInputStream in, int count, PackWriter blobWriter,
+                                        PackWriter writer) throws IOException {
+        List<String> commitIDs = new ArrayList<>();
+        Map<String, byte[]> manifests = new LinkedHashMap<>();
+        boolean blobsStored = false;
+        byte[] rawID = new byte[ObjectIdTable.ID_LENGTH];
+        for (int i = 0; i < count; i += 1) {
+            in.readFully(rawID);
+            String id = toHex(rawID);
+            int type = in.readByte();
+            int encoding = in.readByte();
+            long payloadLength = in.readLong();
+            if (type != PackFile.TYPE_COMMIT && type != PackFile.TYPE_TREE
+                    && type != PackFile.TYPE_BLOB) {
+                throw error("Unexpected object type %d in transfer.", type);
+            }
+            if (encoding != ObjectStore.ENCODING_STORED
+                    && encoding != ObjectStore.ENCODING_DEFLATE
+                    && encoding != ObjectStore.ENCODING_CHUNKED) {
+                throw error("Unexpected encoding %d of object %s in transfer.", encoding, id);
+            }
+            if (type == PackFile.TYPE_BLOB && blobsStored) {
+                throw error("Unexpected blob %s after the trees in transfer.", id);
+            }
+            if (type != PackFile.TYPE_BLOB && !blobsStored) {
+                storeManifests(blobWriter, manifests, writer);
+                blobsStored = true;
+            }
+            byteCount += payloadLength;
+            if (blobWriter.contains(id) || manifests.containsKey(id)
+                    || writer.contains(id) || store.has(type, id)) {
+                in.skipNBytes(payloadLength);
+                continue;
+            }
+            InputStream payload = new BoundedInputStream(in, payloadLength);
+            if (type != PackFile.TYPE_BLOB) {
+                writer.add(id, type, encoding, verifiedPayload(type, id, encoding,
+                        payload, payloadLength));
+            } else if (encoding == ObjectStore.ENCODING_CHUNKED) {
+                if (!PackWriter.fits(payloadLength)) {
+                    throw error("Unexpected object %s in transfer.", id);
+                }
+                manifests.put(id, payload.readNBytes((int) payloadLength));
+            } else {
+                payload = new HashingInputStream(payload, id,
+                        encoding == ObjectStore.ENCODING_DEFLATE);
+                if (PackWriter.fits(payloadLength)) {
+                    blobWriter.add(id, type, encoding, payload, payloadLength);
+                } else {
+                    store.saveStoredObject(type, id, encoding, payload);
+                }
+            }
+            if (type == PackFile.TYPE_COMMIT) {
+                commitIDs.add(id);
+            }
+            objectCount += 1;
+        }
+        if (!blobsStored) {
+            storeManifests(blobWriter, manifests, writer);
+        }
+        return commitIDs;
+    }
+
+    // Put the received blobs in place, then check every held-back manifest
+    // against its ID by hashing the chunks it lists, and add it to WRITER,
+    // ahead of any tree that refers to it.
+    private void storeManifests(PackWriter blobWriter, Map<String, byte[]> manifests,
+                                PackWriter writer) throws IOException {
+        blobWriter.finish();
+        store.reloadPacks();
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        for (Map.Entry<String, byte[]> manifest : manifests.entrySet()) {
+            String id = manifest.getKey();
+            MessageDigest digest = newSha1Digest();
+            try (InputStream content = store.openManifest(manifest.getValue())) {
+                for (int n = content.read(buffer); n >= 0; n = content.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            if (!toHex(digest.digest()).equals(id)) {
+                throw error("Object %s in transfer does not match its ID.", id);
+            }
+            writer.add(id, PackFile.TYPE_BLOB, ObjectStore.ENCODING_CHUNKED, manifest.getValue());
+        }
+    }
+
+    // Read the stored payload of a commit or tree and check that it hashes
+    // to ID. Commits written before CommitCodec must carry ID themselves.
+    private static byte[] verifiedPayload(int type, String id, int encoding,
+                                          InputStream payload,
+                                          long payloadLength) throws IOException {
+        if (!PackWriter.fits(payloadLength) || (encoding != ObjectStore.ENCODING_STORED
+                && encoding != ObjectStore.ENCODING_DEFLATE)) {
+            throw error("Unexpected object %s in transfer.", id);
+        }
+        byte[] stored = payload.readNBytes((int) payloadLength);
+        byte[] raw = stored;
+        if (encoding == ObjectStore.ENCODING_DEFLATE) {
+            try (InputStream inflated = ObjectStore.inflating(new ByteArrayInputStream(stored))) {
+                raw = inflated.readAllBytes();
+            }
+        }
+        boolean matches;
+        if (type == PackFile.TYPE_TREE || CommitCodec.isEncoded(raw)) {
+            matches = sha1((Object) raw).equals(id);
+        } else {
+            matches = id.equals(deserialize(raw, Commit.class).getCommitID());
+        }
+        if (!matches) {
+            throw error("Object %s in transfer does not match its ID.", id);
+        }
+        return stored;
+    }
+
+    /**
+     * Hashes the content of a stored or deflated blob payload as it is read,
+     * and checks it against the blob ID at the end of the payload.
+     */
+    private static class HashingInputStream extends FilterInputStream {
+        private final String id;
+        private final MessageDigest digest = newSha1Digest();
+        /** Inflates a deflated payload, or null for a stored one. */
+        private final Inflater inflater;
+        private final byte[] inflated;
+        private boolean checked = false;
+
+        HashingInputStream(InputStream in, String id, boolean deflated) {
+            super(in);
+            this.id = id;
+            inflater = deflated ? new Inflater() : null;
+            inflated = deflated ? new byte[ObjectStore.BUFFER_SIZE] : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = in.read(bytes, offset, length);
+            if (count > 0) {
+                update(bytes, offset, count);
+            } else if (count < 0) {
+                check();
+            }
+            return count;
+        }
+
+        private void update(byte[] bytes, int offset, int count) throws IOException {
+            if (inflater == null) {
+                digest.update(bytes, offset, count);
+                return;
+            }
+            inflater.setInput(bytes, offset, count);
+            try {
+                for (int n = inflater.inflate(inflated); n > 0; n = inflater.inflate(inflated)) {
+                    digest.update(inflated, 0, n);
+                }
+            } catch (DataFormatException excp) {
+                throw error("Object %s in transfer is corrupt.", id);
+            }
+        }
+
+        private void check() {
+            if (checked) {
+                return;
+            }
+            checked = true;
+            boolean complete = (inflater == null) || inflater.finished();
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (!complete || !toHex(digest.digest()).equals(id)) {
+                throw error("Object %s in transfer does not match its ID.", id);
+            }
+        }
+    }
+
+    /** Reads at most a given number of bytes of another stream. */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining -= 1;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+}
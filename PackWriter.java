@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * Writes objects into new packs (see PackFile for the format). A pack is
+ * finished and a new one started before its data would grow past
+ * MAX_PACK_LENGTH, so that every pack can be memory-mapped as a whole.
+ * Packs are written under temporary names and the index is renamed into
+ * place last, so readers never open a partially written pack.
+ */
+class PackWriter {
+
+    /** The largest pack data file that is written. */
+    static final long MAX_PACK_LENGTH = 1L << 30;
+    /** Objects whose stored payload is larger than this are left loose. */
+    static final long MAX_PACKED_OBJECT_LENGTH = MAX_PACK_LENGTH / 4;
+
+    /** The directory the packs are written to. */
+    private final File packsDir;
+    /** The index files of the finished packs. */
+    private final List<File> finishedPacks = new ArrayList<>();
+    /** The pack being written, or null before the first object. */
+    private File tempPackFile;
+    /** The stream writing tempPackFile. */
+    private DataOutputStream out;
+    /** The number of bytes written to tempPackFile. */
+    private long length;
+    /** The entry offsets of the objects in the current pack, by ID. */
+    private final Map<String, Long> offsets = new TreeMap<>();
+
+    PackWriter(File packsDir) {
+        this.packsDir = packsDir;
+        packsDir.mkdirs();
+    }
+
+    // Whether an object of the given stored length may be packed at all.
+    static boolean fits(long payloadLength) {
+        return payloadLength <= MAX_PACKED_OBJECT_LENGTH;
+    }
+
+    // Whether an entry of the given stored length still goes into the
+    // current pack, rather than finishing it and starting another.
+    boolean fitsCurrentPack(long payloadLength) {
+        return out != null
+                && length + PackFile.ENTRY_HEADER_LENGTH + payloadLength <= MAX_PACK_LENGTH;
+    }
+
+    // Whether the object has already been added to the current pack.
+    boolean contains(String id) {
+        return offsets.containsKey(id);
+    }
+
+    void add(String id, int type, int encoding, byte[] payload) throws IOException {
+        startEntry(id, type, encoding, payload.length);
+        out.write(payload);
+        length += payload.length;
+    }
+
+    // Copy PAYLOADLENGTH stored bytes from IN into a new entry.
+    void add(String id, int type, int encoding,
+             InputStream in, long payloadLength) throws IOException {
+        startEntry(id, type, encoding, payloadLength);
+        long copied = in.transferTo(out);
+        if (copied != payloadLength) {
+            throw error("Object %s changed while it was packed.", id);
+        }
+        length += payloadLength;
+    }
+
+    // Copy the remaining bytes of PAYLOAD, e.g. an entry of another pack.
+    void add(String id, int type, int encoding, ByteBuffer payload) throws IOException {
+        int payloadLength = payload.remaining();
+        startEntry(id, type, encoding, payloadLength);
+        byte[] chunk = new byte[ObjectStore.BUFFER_SIZE];
+        while (payload.hasRemaining()) {
+            int count = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+        length += payloadLength;
+    }
+
+    private void startEntry(String id, int type, int encoding,
+                            long payloadLength) throws IOException {
+        long entryLength = PackFile.ENTRY_HEADER_LENGTH + payloadLength;
+        if (out != null && length + entryLength > MAX_PACK_LENGTH) {
+            finishPack();
+        }
+        if (out == null) {
+            startPack();
+        }
+        offsets.put(id, length);
+        out.writeByte(type);
+        out.writeByte(encoding);
+        out.writeLong(payloadLength);
+        length += PackFile.ENTRY_HEADER_LENGTH;
+    }
+
+    // Finish the current pack and return the index files of all written packs.
+    List<File> finish() throws IOException {
+        if (out != null) {
+            finishPack();
+        }
+        return finishedPacks;
+    }
+
+    // Delete the pack being written, e.g. when a transfer fails. Packs that
+    // were already finished stay.
+    void abort() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException excp) {
+            // The file goes anyway.
+        }
+        out = null;
+        tempPackFile.delete();
+    }
+
+    private void startPack() throws IOException {
+        tempPackFile = Files.createTempFile(packsDir.toPath(), "tmp_pack_", null).toFile();
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempPackFile.toPath()), ObjectStore.BUFFER_SIZE));
+        out.write(PackFile.PACK_MAGIC);
+        out.writeInt(PackFile.VERSION);
+        out.writeInt(0);
+        length = PackFile.HEADER_LENGTH;
+        offsets.clear();
+    }
+
+    private void finishPack() throws IOException {
+        out.close();
+        out = null;
+        try (RandomAccessFile file = new RandomAccessFile(tempPackFile, "rw")) {
+            file.seek(PackFile.PACK_MAGIC.length + 4);
+            file.writeInt(offsets.size());
+        }
+
+        List<String> sortedIDs = new ArrayList<>(offsets.keySet());
+        String packName = "pack-" + sha1(String.join("", sortedIDs));
+        File tempIndexFile = Files.createTempFile(packsDir.toPath(), "tmp_idx_", null).toFile();
+        try (DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempIndexFile.toPath()), ObjectStore.BUFFER_SIZE))) {
+            indexOut.write(PackFile.INDEX_MAGIC);
+            indexOut.writeInt(PackFile.VERSION);
+            indexOut.writeInt(sortedIDs.size());
+            ObjectIdTable.write(indexOut, sortedIDs);
+            for (String id : sortedIDs) {
+                indexOut.writeLong(offsets.get(id));
+            }
+        }
+
+        File indexFile = join(packsDir, packName + ".idx");
+        Files.move(tempPackFile.toPath(), join(packsDir, packName + ".pack").toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tempIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        finishedPacks.add(indexFile);
+    }
+}
@@ -0,0 +1,355 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * For selected commits, a Bitmap of every object reachable from them: the
+ * commits, trees, blobs and chunks. Bit positions number the objects of the
+ * packs in pack order, then in ID order within each pack. The objects that
+ * push and fetch must send are then those reachable from the commit wanted
+ * minus those reachable from the commits the receiver has, an AND-NOT of
+ * bitmaps, instead of a walk of both histories probing the receiver.
+ *
+ * The bitmaps are written by repack, for the branch heads and for every
+ * commit whose generation is a multiple of SELECT_INTERVAL, so a commit
+ * without a bitmap is close to one that has. Commits and objects written
+ * since are found by walking from them until a commit with a bitmap is met;
+ * the bitmaps are ignored once the packs they number differ from the packs
+ * of the store.
+ *
+ * File: .gitlet/packs/bitmaps, magic "GBMP", a version int, the number of
+ * packs, then for every pack its index file name as an int length and bytes
+ * and its object count, an ObjectIdTable of the selected commits, the file
+ * offset of every selected commit's Bitmap encoding as a long, and the
+ * encodings.
+ */
+class ReachabilityBitmaps {
+
+    /** The magic bytes that start the file. */
+    private static final byte[] MAGIC = {'G', 'B', 'M', 'P'};
+    /** The file format version. */
+    private static final int VERSION = 1;
+    /** Commits whose generation is a multiple of this get a bitmap. */
+    private static final int SELECT_INTERVAL = 64;
+
+    /** The store whose objects are numbered. */
+    private final ObjectStore store;
+    /** The numbered packs, in bit order. */
+    private final List<PackFile> packs;
+    /** The first bit position of every pack. */
+    private final int[] bases;
+    /** The number of numbered objects. */
+    private final int objectCount;
+    /** The mapped file, or null while the bitmaps are being built. */
+    private final ByteBuffer data;
+    /** The selected commits of the file. */
+    private final ObjectIdTable selected;
+    /** The position of the offset table in the file. */
+    private final int offsetsStart;
+    /** The bitmaps built so far, while the file is being written. */
+    private final Map<String, Bitmap> built;
+
+    private ReachabilityBitmaps(ObjectStore store, List<PackFile> packs, ByteBuffer data,
+                                int tableStart) {
+        this.store = store;
+        this.packs = packs;
+        bases = new int[packs.size()];
+        int count = 0;
+        for (int i = 0; i < packs.size(); i += 1) {
+            bases[i] = count;
+            count += packs.get(i).size();
+        }
+        objectCount = count;
+        this.data = data;
+        if (data != null) {
+            selected = new ObjectIdTable(data, tableStart);
+            offsetsStart = tableStart + selected.byteLength();
+            built = null;
+        } else {
+            selected = null;
+            offsetsStart = 0;
+            built = new HashMap<>();
+        }
+    }
+
+    private static File bitmapFile(ObjectStore store) {
+        return join(store.getPacksDir(), "bitmaps");
+    }
+
+    // The bitmaps of STORE, or null if it has none for its current packs.
+    static ReachabilityBitmaps open(ObjectStore store) {
+        File file = bitmapFile(store);
+        if (!file.exists()) {
+            return null;
+        }
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] magic = new byte[MAGIC.length];
+        data.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || data.getInt() != VERSION) {
+            return null;
+        }
+        Map<String, PackFile> current = new HashMap<>();
+        for (PackFile pack : store.packs()) {
+            current.put(pack.getIndexFile().getName(), pack);
+        }
+        int packCount = data.getInt();
+        if (packCount != current.size()) {
+            return null;
+        }
+        List<PackFile> packs = new ArrayList<>();
+        for (int i = 0; i < packCount; i += 1) {
+            byte[] name = new byte[data.getInt()];
+            data.get(name);
+            PackFile pack = current.get(new String(name, StandardCharsets.UTF_8));
+            if (pack == null || pack.size() != data.getInt()) {
+                return null;
+            }
+            packs.add(pack);
+        }
+        return new ReachabilityBitmaps(store, packs, data, data.position());
+    }
+
+    // Write the bitmaps of STORE for its current packs, which must hold all
+    // its objects, as they do right after a repack.
+    static void write(ObjectStore store) {
+        ReachabilityBitmaps bitmaps = new ReachabilityBitmaps(store, store.packs(), null, 0);
+        CommitGraph graph = store.commitGraph();
+        Set<String> candidates = new HashSet<>();
+        File headsDir = join(store.getGitletDir(), "refs", "heads");
+        List<String> heads = plainFilenamesIn(headsDir);
+        if (heads != null) {
+            for (String head : heads) {
+                candidates.add(readContentsAsString(join(headsDir, head)));
+            }
+        }
+        for (String commitID : store.listCommits()) {
+            if (graph.generation(commitID) % SELECT_INTERVAL == 0) {
+                candidates.add(commitID);
+            }
+        }
+        // Ancestors first, so every walk stops at the bitmaps built before.
+        List<String> order = new ArrayList<>(candidates);
+        order.sort(Comparator.comparingInt(graph::generation));
+        TreeMap<String, Bitmap> written = new TreeMap<>();
+        for (String commitID : order) {
+            if (bitmaps.position(commitID) < 0) {
+                continue;
+            }
+            Reach reach = bitmaps.reach(commitID);
+            if (reach.unnumbered.isEmpty()) {
+                bitmaps.built.put(commitID, reach.bits);
+                written.put(commitID, reach.bits);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream encodings = new ByteArrayOutputStream();
+            List<Integer> offsets = new ArrayList<>();
+            DataOutputStream encoder = new DataOutputStream(encodings);
+            for (Bitmap bitmap : written.values()) {
+                offsets.add(encoder.size());
+                bitmap.write(encoder);
+            }
+            File temp = Files.createTempFile(store.getPacksDir().toPath(),
+                    "tmp_bitmaps_", null).toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(bitmaps.packs.size());
+                for (PackFile pack : bitmaps.packs) {
+                    byte[] name = pack.getIndexFile().getName().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeInt(pack.size());
+                }
+                ObjectIdTable.write(out, new ArrayList<>(written.keySet()));
+                long dataStart = out.size() + 8L * offsets.size();
+                for (int offset : offsets) {
+                    out.writeLong(dataStart + offset);
+                }
+                encodings.writeTo(out);
+            }
+            Files.move(temp.toPath(), bitmapFile(store).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // The bit position of an object, or -1 if it is not in the numbered packs.
+    private int position(String id) {
+        for (int i = 0; i < packs.size(); i += 1) {
+            int position = packs.get(i).find(id);
+            if (position >= 0) {
+                return bases[i] + position;
+            }
+        }
+        return -1;
+    }
+
+    // The stored bitmap of a commit, or null if it has none.
+    private Bitmap stored(String commitID) {
+        if (built != null) {
+            return built.get(commitID);
+        }
+        int index = selected.find(commitID);
+        if (index < 0) {
+            return null;
+        }
+        ByteBuffer in = data.duplicate();
+        in.position((int) data.getLong(offsetsStart + 8 * index));
+        return Bitmap.read(in, objectCount);
+    }
+
+    // The objects reachable from COMMITID. The history is walked until the
+    // commits with bitmaps are met; the objects of the commits passed are
+    // added afterwards, oldest first, so that only trees missing from those
+    // bitmaps are read.
+    private Reach reach(String commitID) {
+        Reach reach = new Reach(new Bitmap(objectCount));
+        CommitGraph graph = store.commitGraph();
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        List<String> walked = new ArrayList<>();
+        stack.push(commitID);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (!visited.add(id)) {
+                continue;
+            }
+            int position = position(id);
+            if (position >= 0 && reach.bits.get(position)) {
+                continue;
+            }
+            Bitmap bitmap = stored(id);
+            if (bitmap != null) {
+                reach.bits.or(bitmap);
+                continue;
+            }
+            walked.add(id);
+            for (String parentID : graph.parents(id)) {
+                stack.push(parentID);
+            }
+        }
+        for (int i = walked.size() - 1; i >= 0; i -= 1) {
+            addCommit(reach, walked.get(i));
+        }
+        return reach;
+    }
+
+    // Add a commit and the objects it refers to, skipping trees already in REACH.
+    private void addCommit(Reach reach, String commitID) {
+        if (!add(reach, PackFile.TYPE_COMMIT, commitID)) {
+            return;
+        }
+        Commit commit = Commit.findCommit(store, commitID);
+        List<String> blobIDs = new ArrayList<>();
+        if (commit.getTreeID() == null) {
+            blobIDs.addAll(commit.getFileNameToBlobID().values());
+        } else {
+            Deque<String> trees = new ArrayDeque<>();
+            trees.push(commit.getTreeID());
+            while (!trees.isEmpty()) {
+                String treeID = trees.pop();
+                if (add(reach, PackFile.TYPE_TREE, treeID)) {
+                    List<String> subtreeIDs = new ArrayList<>();
+                    Tree.children(store, treeID, subtreeIDs, blobIDs);
+                    subtreeIDs.forEach(trees::push);
+                }
+            }
+        }
+        for (String blobID : blobIDs) {
+            if (add(reach, PackFile.TYPE_BLOB, blobID)) {
+                for (String chunkID : store.chunksOf(blobID)) {
+                    add(reach, PackFile.TYPE_BLOB, chunkID);
+                }
+            }
+        }
+    }
+
+    // Add an object of TYPE to REACH and return whether it was new.
+    private boolean add(Reach reach, int type, String id) {
+        int position = position(id);
+        if (position < 0) {
+            return reach.unnumbered.putIfAbsent(id, type) == null;
+        }
+        if (reach.bits.get(position)) {
+            return false;
+        }
+        reach.bits.set(position);
+        return true;
+    }
+
+    // The objects reachable from WANTID but from none of HAVEIDS, by type:
+    // PackFile.TYPE_COMMIT, TYPE_TREE and TYPE_BLOB, each in ID order.
+    Map<Integer, List<String>> objectsBetween(String wantID, Collection<String> haveIDs) {
+        Reach want = reach(wantID);
+        for (String haveID : haveIDs) {
+            Reach have = reach(haveID);
+            want.bits.andNot(have.bits);
+            want.unnumbered.keySet().removeAll(have.unnumbered.keySet());
+        }
+        Map<Integer, Set<String>> objects = new TreeMap<>();
+        for (int type : List.of(PackFile.TYPE_COMMIT, PackFile.TYPE_TREE, PackFile.TYPE_BLOB)) {
+            objects.put(type, new TreeSet<>());
+        }
+        int pack = 0;
+        for (int bit = want.bits.nextSetBit(0); bit >= 0; bit = want.bits.nextSetBit(bit + 1)) {
+            while (pack + 1 < packs.size() && bases[pack + 1] <= bit) {
+                pack += 1;
+            }
+            int position = bit - bases[pack];
+            int type = PackFile.objectType(packs.get(pack).typeAt(position));
+            objects.get(type).add(packs.get(pack).idAt(position));
+        }
+        for (Map.Entry<String, Integer> object : want.unnumbered.entrySet()) {
+            objects.get(object.getValue()).add(object.getKey());
+        }
+        Map<Integer, List<String>> result = new TreeMap<>();
+        objects.forEach((type, ids) -> result.put(type, new ArrayList<>(ids)));
+        return result;
+    }
+
+    /** The objects reachable from some commit. */
+    private static class Reach {
+        /** The reachable objects of the numbered packs. */
+        private final Bitmap bits;
+        /** The other reachable objects, with their types. */
+        private final Map<String, Integer> unnumbered = new HashMap<>();
+
+        Reach(Bitmap bits) {
+            this.bits = bits;
+        }
+    }
+}
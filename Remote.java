@@ -1,9 +1,29 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 import static gitlet.Utils.*;
 
@@ -15,6 +35,8 @@ public class Remote implements Serializable {
 
     /** File that stores all remote mappings. */
     private static final File REMOTES_FILE = Utils.join(Repository.REMOTES_DIR, "remotes");
+    /** The most objects push and fetch copy at the same time. */
+    private static final int TRANSFER_THREADS = 8;
     /** Map of remote name -> path. */
     private TreeMap<String, String> remoteMap;
 
@@ -44,9 +66,11 @@ public class Remote implements Serializable {
     public void addRemote(String name, String path) {
         if (remoteMap.containsKey(name)) {
             System.out.println("A remote with that name already exists.");
-            System.exit(0);
+            Main.exit(0);
+        }
+        if (!TransferClient.isAddress(path)) {
+            path = normalizePath(path);
         }
-        path = normalizePath(path);
         remoteMap.put(name, path);
         saveRemotes();
     }
@@ -55,7 +79,7 @@ public class Remote implements Serializable {
     public void removeRemote(String name) {
         if (!remoteMap.containsKey(name)) {
             System.out.println("A remote with that name does not exist.");
-            System.exit(0);
+            Main.exit(0);
         }
         remoteMap.remove(name);
         saveRemotes();
@@ -74,56 +98,401 @@ public class Remote implements Serializable {
         return inputPath.replace("/", File.separator);
     }
 
+    // Copy the commit COMMITID of the remote with its history into the
+    // local store.
     public static void copyCommitsFromRemote(String commitID, File remoteGitletDir) {
         if (commitID == null) {
             return;
         }
-        File localCommitFile = join(Repository.COMMITS_DIR, commitID);
-        if (localCommitFile.exists()) {
+        ObjectStore localStore = ObjectStore.local();
+        if (localStore.hasCommit(commitID)) {
+            return;
+        }
+        transfer(ObjectStore.open(remoteGitletDir), localStore, commitID);
+    }
+
+    // Copy the local commit COMMITID with its history to the remote.
+    public static void copyCommitsToRemote(String commitID, File remoteGitletDir) {
+        ObjectStore remoteStore = ObjectStore.open(remoteGitletDir);
+        if (remoteStore.hasCommit(commitID)) {
             return;
         }
+        transfer(ObjectStore.local(), remoteStore, commitID);
+    }
+
+    // Copy WANTID with the history DEST lacks from SOURCE to DEST. First the
+    // two sides negotiate: the branch heads of DEST that SOURCE has too are
+    // complete in DEST, so nothing they reach is sent. The objects to send
+    // are then read off the reachability bitmaps of SOURCE, or found by a
+    // walk, and copied in one batch.
+    private static void transfer(ObjectStore source, ObjectStore dest, String wantID) {
+        List<String> haveIDs = new ArrayList<>();
+        for (String headID : heads(dest).values()) {
+            if (source.hasCommit(headID)) {
+                haveIDs.add(headID);
+            }
+        }
+        copyObjects(source, dest, objectsToSend(source, wantID, haveIDs, dest::has));
+    }
 
-        File remoteCommitFile = join(remoteGitletDir, "commits", commitID);
-        writeContents(localCommitFile, readContents(remoteCommitFile));
-        Commit remoteCommit = readObject(remoteCommitFile, Commit.class);
-        Map<String, String> remoteCommitFiles = remoteCommit.getFileNameToBlobID();
-        for (String blobID : remoteCommitFiles.values()) {
-            File localBlobFile = join(Repository.BLOBS_DIR, blobID);
-            if (!localBlobFile.exists()) {
-                File remoteBlobFile = join(remoteGitletDir, "blobs", blobID);
-                writeContents(localBlobFile, readContents(remoteBlobFile));
+    // The branch heads of STORE: the commit ID of every branch name.
+    static Map<String, String> heads(ObjectStore store) {
+        Map<String, String> heads = new TreeMap<>();
+        File headsDir = join(store.getGitletDir(), "refs", "heads");
+        List<String> branches = plainFilenamesIn(headsDir);
+        if (branches != null) {
+            for (String branch : branches) {
+                heads.put(branch, readContentsAsString(join(headsDir, branch)));
             }
         }
+        return heads;
+    }
 
-        copyCommitsFromRemote(remoteCommit.getParentCommitID(), remoteGitletDir);
-        String secondParentID = remoteCommit.getSecondParentCommitID();
-        if (secondParentID != null) {
-            copyCommitsFromRemote(secondParentID, remoteGitletDir);
+    // The objects of SOURCE reachable from WANTID but not from HAVEIDS, by
+    // type, read off the reachability bitmaps of SOURCE if it has them, and
+    // otherwise found by missingObjects with PRESENT.
+    static Map<Integer, List<String>> objectsToSend(ObjectStore source, String wantID,
+                                                   List<String> haveIDs,
+                                                   BiPredicate<Integer, String> present) {
+        ReachabilityBitmaps bitmaps = ReachabilityBitmaps.open(source);
+        if (bitmaps != null) {
+            return bitmaps.objectsBetween(wantID, haveIDs);
         }
+        return missingObjects(source, wantID, haveIDs, present);
     }
 
-    public static void copyCommitsToRemote(String commitID, File remoteGitletDir) {
-        File remoteCommitFile = join(remoteGitletDir, "commits", commitID);
-        if (remoteCommitFile.exists()) {
-            return;
+    // Like objectsToSend, for a receiver over the network, which is only
+    // known to have HAVEIDS.
+    static Map<Integer, List<String>> objectsToSend(ObjectStore source, String wantID,
+                                                   List<String> haveIDs) {
+        ReachabilityBitmaps bitmaps = ReachabilityBitmaps.open(source);
+        if (bitmaps != null) {
+            return bitmaps.objectsBetween(wantID, haveIDs);
+        }
+        return missingObjects(source, wantID, haveIDs, reachableFrom(source, haveIDs));
+    }
+
+    // Whether a receiver that is only known to have HAVEIDS has an object:
+    // the commits are their history, and the trees and blobs are those of
+    // the commits themselves. Older trees and blobs may then be sent again,
+    // which the receiver skips.
+    private static BiPredicate<Integer, String> reachableFrom(ObjectStore source,
+                                                     List<String> haveIDs) {
+        Set<String> commonCommits = new HashSet<>();
+        Set<String> commonObjects = new HashSet<>();
+        CommitGraph graph = source.commitGraph();
+        Deque<String> queue = new ArrayDeque<>(haveIDs);
+        while (!queue.isEmpty()) {
+            String commitID = queue.poll();
+            if (commonCommits.add(commitID)) {
+                queue.addAll(graph.parents(commitID));
+            }
+        }
+        for (String haveID : haveIDs) {
+            Commit commit = Commit.findCommit(source, haveID);
+            if (commit.getTreeID() == null) {
+                commonObjects.addAll(commit.getFileNameToBlobID().values());
+                continue;
+            }
+            queue.add(commit.getTreeID());
+            while (!queue.isEmpty()) {
+                String treeID = queue.poll();
+                if (commonObjects.add(treeID)) {
+                    List<String> subtreeIDs = new ArrayList<>();
+                    List<String> blobIDs = new ArrayList<>();
+                    Tree.children(source, treeID, subtreeIDs, blobIDs);
+                    queue.addAll(subtreeIDs);
+                    commonObjects.addAll(blobIDs);
+                }
+            }
+        }
+        return (type, id) -> (type == PackFile.TYPE_COMMIT)
+                ? commonCommits.contains(id) : commonObjects.contains(id);
+    }
+
+    // The objects reachable from WANTID that the receiver lacks, by type,
+    // found with explicit work queues rather than recursion. The walk stops
+    // at HAVEIDS and at every commit and tree PRESENT says the receiver has,
+    // which it then has completely.
+    private static Map<Integer, List<String>> missingObjects(ObjectStore source, String wantID,
+                                                            List<String> haveIDs,
+                                                            BiPredicate<Integer, String> present) {
+        Set<String> haves = new HashSet<>(haveIDs);
+        List<String> commitIDs = new ArrayList<>();
+        Deque<String> treeQueue = new ArrayDeque<>();
+        Set<String> blobIDs = new TreeSet<>();
+        Deque<String> commitQueue = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        commitQueue.add(wantID);
+        while (!commitQueue.isEmpty()) {
+            String commitID = commitQueue.poll();
+            if (!seen.add(commitID) || haves.contains(commitID)
+                    || present.test(PackFile.TYPE_COMMIT, commitID)) {
+                continue;
+            }
+            commitIDs.add(commitID);
+            Commit commit = Commit.findCommit(source, commitID);
+            if (commit.getTreeID() != null) {
+                treeQueue.add(commit.getTreeID());
+            } else {
+                blobIDs.addAll(commit.getFileNameToBlobID().values());
+            }
+            commitQueue.addAll(source.commitGraph().parents(commitID));
+        }
+
+        List<String> treeIDs = new ArrayList<>();
+        while (!treeQueue.isEmpty()) {
+            String treeID = treeQueue.poll();
+            if (!seen.add(treeID) || present.test(PackFile.TYPE_TREE, treeID)) {
+                continue;
+            }
+            treeIDs.add(treeID);
+            List<String> subtreeIDs = new ArrayList<>();
+            List<String> treeBlobIDs = new ArrayList<>();
+            Tree.children(source, treeID, subtreeIDs, treeBlobIDs);
+            treeQueue.addAll(subtreeIDs);
+            blobIDs.addAll(treeBlobIDs);
+        }
+
+        blobIDs.removeIf(blobID -> present.test(PackFile.TYPE_BLOB, blobID));
+        Map<Integer, List<String>> objects = new TreeMap<>();
+        objects.put(PackFile.TYPE_COMMIT, commitIDs);
+        objects.put(PackFile.TYPE_TREE, treeIDs);
+        objects.put(PackFile.TYPE_BLOB, new ArrayList<>(blobIDs));
+        return objects;
+    }
+
+    // Copy OBJECTS, as listed by missingObjects or objectsBetween, on up to
+    // TRANSFER_THREADS threads. An interrupted copy must not leave DEST with
+    // a commit or tree whose contents are missing, since it is then taken to
+    // be complete: whole packs go first (see wholePacks), then blobs, then
+    // trees, each after its subtrees, and last the commits, each after its
+    // parents. If both stores are on the same file system, loose objects and
+    // whole packs are hard-linked rather than copied.
+    private static void copyObjects(ObjectStore source, ObjectStore dest,
+                                    Map<Integer, List<String>> objects) {
+        // Open the packs here, so the copies only read shared state.
+        source.packs();
+        dest.prepareForThreads();
+        boolean link = sameFileSystem(source, dest);
+        long bytes = 0;
+        List<PackFile> packs = wholePacks(source, dest, objects);
+        int packedObjects = 0;
+        List<String> packedCommitIDs = new ArrayList<>();
+        for (PackFile pack : packs) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                String id = pack.idAt(i);
+                if (pack.typeAt(i) == PackFile.TYPE_COMMIT && !dest.hasCommit(id)) {
+                    packedCommitIDs.add(id);
+                }
+            }
+            packedObjects += pack.size();
+            bytes += source.copyPackTo(dest, pack, link);
+        }
+        dest.packs();
+        for (String commitID : packedCommitIDs) {
+            dest.indexCommit(commitID, Commit.findCommit(source, commitID).getMessage());
+        }
+        List<String> blobIDs = objects.get(PackFile.TYPE_BLOB);
+        List<String> treeIDs = objects.get(PackFile.TYPE_TREE);
+        List<String> commitIDs = new ArrayList<>(objects.get(PackFile.TYPE_COMMIT));
+        CommitGraph graph = source.commitGraph();
+        commitIDs.sort(Comparator.comparingInt(graph::generation));
+        ExecutorService pool = Executors.newFixedThreadPool(TRANSFER_THREADS);
+        AtomicInteger blobs = new AtomicInteger();
+        AtomicInteger trees = new AtomicInteger();
+        int commits = 0;
+        try {
+            bytes += copyAll(pool, blobIDs, dest::hasBlob, blobs,
+                    blobID -> source.copyBlobTo(dest, blobID, link));
+            for (List<String> level : treeLevels(source, treeIDs)) {
+                bytes += copyAll(pool, level, dest::hasTree, trees,
+                        treeID -> source.copyTreeTo(dest, treeID, link));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (String commitID : commitIDs) {
+            if (!dest.hasCommit(commitID)) {
+                bytes += source.copyCommitTo(dest, commitID, link);
+                dest.indexCommit(commitID, Commit.findCommit(source, commitID).getMessage());
+                commits += 1;
+            }
+        }
+        dest.forgetLooseCommits();
+        if (Boolean.getBoolean("gitlet.transferStats")) {
+            System.err.println("transfer: " + (commits + trees.get() + blobs.get())
+                    + " objects (" + commits + " commits, " + trees.get() + " trees, "
+                    + blobs.get() + " blobs) and " + packs.size() + " whole packs ("
+                    + packedObjects + " objects), " + bytes + " bytes, by "
+                    + (link ? "hard links" : "transferTo"));
+        }
+    }
+
+    // Whether two stores are on the same file system, so that their objects
+    // can be hard-linked.
+    private static boolean sameFileSystem(ObjectStore source, ObjectStore dest) {
+        try {
+            return Files.getFileStore(source.getGitletDir().toPath())
+                    .equals(Files.getFileStore(dest.getGitletDir().toPath()));
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    // The packs of SOURCE worth copying to DEST as they are: DEST does not
+    // have them yet, and at least half of their objects are among OBJECTS.
+    // A whole pack also brings objects that were not asked for, so a pack
+    // only qualifies if its objects refer to nothing but objects in the
+    // chosen packs or in DEST; then DEST is complete after every pack.
+    private static List<PackFile> wholePacks(ObjectStore source, ObjectStore dest,
+                                             Map<Integer, List<String>> objects) {
+        Set<String> wanted = new HashSet<>();
+        for (List<String> ids : objects.values()) {
+            wanted.addAll(ids);
+        }
+        for (String blobID : objects.get(PackFile.TYPE_BLOB)) {
+            wanted.addAll(source.chunksOf(blobID));
+        }
+        List<PackFile> packs = new ArrayList<>();
+        for (PackFile pack : source.packs()) {
+            if (join(dest.getPacksDir(), pack.getIndexFile().getName()).exists()) {
+                continue;
+            }
+            int wantedCount = 0;
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (wanted.contains(pack.idAt(i))) {
+                    wantedCount += 1;
+                }
+            }
+            if (wantedCount > 0 && wantedCount * 2 >= pack.size()) {
+                packs.add(pack);
+            }
+        }
+        // Dropping a pack can leave others referring to it, so repeat.
+        boolean dropped = true;
+        while (dropped) {
+            Set<String> packedIDs = new HashSet<>();
+            for (PackFile pack : packs) {
+                for (int i = 0; i < pack.size(); i += 1) {
+                    packedIDs.add(pack.idAt(i));
+                }
+            }
+            dropped = packs.removeIf(pack -> !refersWithin(source, dest, pack, packedIDs));
+        }
+        return packs;
+    }
+
+    // Whether every object of PACK only refers to PACKEDIDS or objects of DEST.
+    // Deltas need no check, since their bases are always in the same pack.
+    private static boolean refersWithin(ObjectStore source, ObjectStore dest, PackFile pack,
+                                        Set<String> packedIDs) {
+        BiPredicate<Integer, String> available = (type, id) ->
+                packedIDs.contains(id) || dest.has(type, id);
+        for (int i = 0; i < pack.size(); i += 1) {
+            String id = pack.idAt(i);
+            List<String> subtreeIDs = new ArrayList<>();
+            List<String> blobIDs = new ArrayList<>();
+            if (pack.typeAt(i) == PackFile.TYPE_COMMIT) {
+                for (String parentID : source.commitGraph().parents(id)) {
+                    if (!available.test(PackFile.TYPE_COMMIT, parentID)) {
+                        return false;
+                    }
+                }
+                Commit commit = Commit.findCommit(source, id);
+                if (commit.getTreeID() != null) {
+                    subtreeIDs.add(commit.getTreeID());
+                } else {
+                    blobIDs.addAll(commit.getFileNameToBlobID().values());
+                }
+            } else if (pack.typeAt(i) == PackFile.TYPE_TREE) {
+                Tree.children(source, id, subtreeIDs, blobIDs);
+            } else if (pack.typeAt(i) == PackFile.TYPE_BLOB) {
+                blobIDs.addAll(source.chunksOf(id));
+            }
+            for (String subtreeID : subtreeIDs) {
+                if (!available.test(PackFile.TYPE_TREE, subtreeID)) {
+                    return false;
+                }
+            }
+            for (String blobID : blobIDs) {
+                if (!available.test(PackFile.TYPE_BLOB, blobID)) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
 
-        File localCommitFile = join(Repository.COMMITS_DIR, commitID);
-        writeContents(remoteCommitFile, readContents(localCommitFile));
-        Commit localCommit = readObject(localCommitFile, Commit.class);
-        Map<String, String> fileMap = localCommit.getFileNameToBlobID();
-        for (String blobID : fileMap.values()) {
-            File remoteBlobFile = join(remoteGitletDir, "blobs", blobID);
-            if (!remoteBlobFile.exists()) {
-                File localBlobFile = join(Repository.BLOBS_DIR, blobID);
-                writeContents(remoteBlobFile, readContents(localBlobFile));
+    // TREEIDS grouped by height: every tree is in a later group than the
+    // subtrees it contains among TREEIDS.
+    private static Collection<List<String>> treeLevels(ObjectStore source,
+                                                       List<String> treeIDs) {
+        Set<String> pending = new HashSet<>(treeIDs);
+        Map<String, List<String>> subtrees = new HashMap<>();
+        for (String treeID : treeIDs) {
+            List<String> subtreeIDs = new ArrayList<>();
+            Tree.children(source, treeID, subtreeIDs, new ArrayList<>());
+            subtreeIDs.retainAll(pending);
+            subtrees.put(treeID, subtreeIDs);
+        }
+        Map<String, Integer> heights = new HashMap<>();
+        Map<Integer, List<String>> levels = new TreeMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        for (String treeID : treeIDs) {
+            stack.push(treeID);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (heights.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                int height = 0;
+                boolean ready = true;
+                for (String subtreeID : subtrees.get(id)) {
+                    Integer subtreeHeight = heights.get(subtreeID);
+                    if (subtreeHeight == null) {
+                        ready = false;
+                        stack.push(subtreeID);
+                    } else {
+                        height = Math.max(height, subtreeHeight + 1);
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    heights.put(id, height);
+                    levels.computeIfAbsent(height, level -> new ArrayList<>()).add(id);
+                }
             }
         }
+        return levels.values();
+    }
 
-        copyCommitsToRemote(localCommit.getParentCommitID(), remoteGitletDir);
-        String secondParentID = localCommit.getSecondParentCommitID();
-        if (secondParentID != null) {
-            copyCommitsToRemote(secondParentID, remoteGitletDir);
+    // Run COPY on POOL for every one of IDS that is not PRESENT, counting
+    // them in COPIED, and return the bytes written.
+    private static long copyAll(ExecutorService pool, List<String> ids,
+                                Predicate<String> present, AtomicInteger copied,
+                                ToLongFunction<String> copy) {
+        List<Future<Long>> copies = new ArrayList<>();
+        for (String id : ids) {
+            copies.add(pool.submit(() -> {
+                if (present.test(id)) {
+                    return 0L;
+                }
+                copied.incrementAndGet();
+                return copy.applyAsLong(id);
+            }));
+        }
+        long bytes = 0;
+        try {
+            for (Future<Long> result : copies) {
+                bytes += result.get();
+            }
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        } catch (InterruptedException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
+        return bytes;
     }
 }
@@ -0,0 +1,347 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * Implements the repack command, which moves loose objects (and with -a,
+ * every object) into new packs.
+ *
+ * Blobs are grouped by the file name commits give them, sorted by size, and
+ * each blob is stored as a delta against the most similar of the previous
+ * pack.window blobs of its group, provided that base's delta chain is shorter
+ * than pack.depth. Bases always end up in the same pack as their deltas: a
+ * delta that would start a new pack is written whole instead. Chunked blobs
+ * are packed as their manifests and chunks, all whole; no commit names a
+ * chunk, so chunks are never grouped. The commit-graph and the reachability bitmaps are rewritten
+ * afterwards. GarbageCollector uses rewrite to pack only the objects it keeps.
+ */
+class Repacker {
+
+    /** How many previous blobs of a group are tried as delta bases. */
+    static final String WINDOW = "pack.window";
+    /** The longest delta chain that is written. */
+    static final String DEPTH = "pack.depth";
+    /** Blobs stored larger than this are never deltified. */
+    private static final long MAX_DELTA_LENGTH = 16L << 20;
+
+    /** The store being repacked. */
+    private final ObjectStore store;
+    /** Whether packed objects are rewritten as well as loose ones. */
+    private final boolean all;
+    /** The objects to pack, or null for all of them (see rewrite). */
+    private final Predicate<String> keep;
+    /** The writer of the new packs. */
+    private final PackWriter writer;
+    /** The number of window candidates tried for every blob. */
+    private final int window;
+    /** The longest allowed delta chain. */
+    private final int maxDepth;
+    /** The delta chain depth of every blob written so far. */
+    private final Map<String, Integer> depths = new HashMap<>();
+    /** The IDs of the objects written to the new packs. */
+    private final Set<String> written = new HashSet<>();
+    /** The loose files whose objects are now packed. */
+    private final List<File> packedLooseFiles = new ArrayList<>();
+    /** The number of blobs written as deltas. */
+    private int deltaCount = 0;
+    /** The index files of the new packs, once they are written. */
+    private List<File> newPacks;
+
+    private Repacker(ObjectStore store, boolean all, Predicate<String> keep) {
+        this.store = store;
+        this.all = all;
+        this.keep = keep;
+        writer = new PackWriter(store.getPacksDir());
+        Config config = Config.load(store.getGitletDir());
+        window = config.getInt(WINDOW, 10);
+        maxDepth = config.getInt(DEPTH, 50);
+    }
+
+    // Pack the loose objects of the current repository, or all its objects.
+    public static void repack(boolean all) {
+        Repacker repacker = new Repacker(ObjectStore.local(), all, null);
+        try {
+            int packed = repacker.run();
+            CommitGraph.write(repacker.store);
+            ReachabilityBitmaps.write(repacker.store);
+            System.out.println("Packed " + packed + " objects ("
+                    + repacker.deltaCount + " as deltas).");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Write the objects of STORE that KEEP accepts, loose or packed, into new
+    // packs and return their index files. The loose copies of these objects
+    // are deleted, but the old packs are left to the caller (see
+    // GarbageCollector), and so is rewriting the commit-graph and bitmaps.
+    static List<File> rewrite(ObjectStore store, Predicate<String> keep) {
+        Repacker repacker = new Repacker(store, true, keep);
+        try {
+            repacker.run();
+            return repacker.newPacks;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private int run() throws IOException {
+        List<PackFile> oldPacks = new ArrayList<>(store.packs());
+        Set<String> commitIDs = objectsToPack(PackFile.TYPE_COMMIT, oldPacks);
+        Set<String> treeIDs = objectsToPack(PackFile.TYPE_TREE, oldPacks);
+        Set<String> blobIDs = objectsToPack(PackFile.TYPE_BLOB, oldPacks);
+        long newest = newestSource(List.of(commitIDs, treeIDs, blobIDs), oldPacks);
+
+        for (String commitID : commitIDs) {
+            writeWhole(PackFile.TYPE_COMMIT, commitID);
+        }
+        for (String treeID : treeIDs) {
+            writeWhole(PackFile.TYPE_TREE, treeID);
+        }
+        for (List<String> group : groupBlobsByName(commitIDs, blobIDs)) {
+            writeGroup(group);
+        }
+        for (String blobID : blobIDs) {
+            if (!written.contains(blobID)) {
+                writeWhole(PackFile.TYPE_BLOB, blobID);
+            }
+        }
+        newPacks = writer.finish();
+        // Date the new packs by their newest object rather than now, so that
+        // packing old objects does not make them recent (see GarbageCollector).
+        for (File indexFile : newPacks) {
+            File packFile = join(indexFile.getParentFile(),
+                    indexFile.getName().replace(".idx", ".pack"));
+            packFile.setLastModified(newest);
+        }
+
+        // Only now that the new packs are in place can the old copies go.
+        store.reloadPacks();
+        for (File file : packedLooseFiles) {
+            file.delete();
+            if (store.isSharded()) {
+                // Only succeeds once the shard is empty.
+                file.getParentFile().delete();
+            }
+        }
+        if (all && keep == null) {
+            for (PackFile pack : oldPacks) {
+                if (!newPacks.contains(pack.getIndexFile())) {
+                    pack.getIndexFile().delete();
+                    pack.getPackFile().delete();
+                }
+            }
+            store.reloadPacks();
+        }
+        return written.size();
+    }
+
+    // The loose objects of TYPE, plus the packed ones when repacking everything.
+    private Set<String> objectsToPack(int type, List<PackFile> oldPacks) {
+        Set<String> ids = new TreeSet<>();
+        for (String id : store.listLooseObjects(type)) {
+            if (keep != null && !keep.test(id)) {
+                continue;
+            }
+            if (!all && store.findPack(type, id) != null) {
+                // Already packed; the loose copy is redundant.
+                packedLooseFiles.add(store.looseFile(type, id));
+            } else {
+                ids.add(id);
+            }
+        }
+        if (all) {
+            for (PackFile pack : oldPacks) {
+                for (int position = 0; position < pack.size(); position += 1) {
+                    if (PackFile.objectType(pack.typeAt(position)) == type
+                            && (keep == null || keep.test(pack.idAt(position)))) {
+                        ids.add(pack.idAt(position));
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // The latest modification time of the files the objects IDS are packed
+    // from: their loose files, and the old packs when repacking everything.
+    private long newestSource(List<Set<String>> ids, List<PackFile> oldPacks) {
+        long newest = 0;
+        int[] types = {PackFile.TYPE_COMMIT, PackFile.TYPE_TREE, PackFile.TYPE_BLOB};
+        for (int i = 0; i < types.length; i += 1) {
+            for (String id : ids.get(i)) {
+                newest = Math.max(newest, store.looseFile(types[i], id).lastModified());
+            }
+        }
+        if (all) {
+            for (PackFile pack : oldPacks) {
+                newest = Math.max(newest, pack.getPackFile().lastModified());
+            }
+        }
+        return newest;
+    }
+
+    // Group the blobs by the first file name a commit gives them; blobs that
+    // no commit names are left out.
+    private List<List<String>> groupBlobsByName(Set<String> commitIDs, Set<String> blobIDs) {
+        Map<String, String> blobNames = new HashMap<>();
+        for (String commitID : commitIDs) {
+            Commit commit = Commit.findCommit(store, commitID);
+            for (Map.Entry<String, String> entry : commit.getFileNameToBlobID().entrySet()) {
+                if (blobIDs.contains(entry.getValue())) {
+                    blobNames.putIfAbsent(entry.getValue(), entry.getKey());
+                }
+            }
+        }
+        Map<String, List<String>> groups = new TreeMap<>();
+        for (Map.Entry<String, String> entry : blobNames.entrySet()) {
+            groups.computeIfAbsent(entry.getValue(), name -> new ArrayList<>())
+                    .add(entry.getKey());
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    // Write the blobs of one group, largest first, as deltas where that pays off.
+    private void writeGroup(List<String> group) throws IOException {
+        Map<String, Long> lengths = new HashMap<>();
+        for (String blobID : group) {
+            lengths.put(blobID, storedLength(blobID));
+        }
+        group.sort(Comparator.comparing((String id) -> lengths.get(id)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        Deque<String> candidates = new ArrayDeque<>();
+        Map<String, byte[]> contents = new HashMap<>();
+        for (String blobID : group) {
+            if (lengths.get(blobID) > MAX_DELTA_LENGTH || store.isChunked(blobID)) {
+                writeWhole(PackFile.TYPE_BLOB, blobID);
+                continue;
+            }
+            byte[] content = store.readBlob(blobID);
+            String bestBase = null;
+            byte[] bestDelta = null;
+            for (String baseID : candidates) {
+                if (depths.get(baseID) >= maxDepth || !writer.contains(baseID)) {
+                    continue;
+                }
+                byte[] delta = Delta.create(contents.get(baseID), content);
+                if (delta.length < content.length / 2
+                        && (bestDelta == null || delta.length < bestDelta.length)) {
+                    bestBase = baseID;
+                    bestDelta = delta;
+                }
+            }
+            if (bestDelta == null) {
+                writeWhole(PackFile.TYPE_BLOB, blobID);
+            } else {
+                writeDelta(blobID, bestBase, bestDelta);
+            }
+
+            candidates.addLast(blobID);
+            contents.put(blobID, content);
+            if (candidates.size() > window) {
+                contents.remove(candidates.removeFirst());
+            }
+        }
+    }
+
+    private void writeDelta(String blobID, String baseID, byte[] delta) throws IOException {
+        byte[] encoded = store.encodePayload(delta);
+        byte[] payload = new byte[ObjectIdTable.ID_LENGTH + encoded.length];
+        System.arraycopy(fromHex(baseID), 0, payload, 0, ObjectIdTable.ID_LENGTH);
+        System.arraycopy(encoded, 0, payload, ObjectIdTable.ID_LENGTH, encoded.length);
+        if (!writer.fitsCurrentPack(payload.length)) {
+            // The delta would go into the next pack, away from its base.
+            writeWhole(PackFile.TYPE_BLOB, blobID);
+            return;
+        }
+        writer.add(blobID, PackFile.TYPE_BLOB_DELTA, store.payloadEncoding(), payload);
+        depths.put(blobID, depths.get(baseID) + 1);
+        written.add(blobID);
+        deltaCount += 1;
+        forgetLooseCopy(PackFile.TYPE_BLOB, blobID);
+    }
+
+    // Write an object in full. Stored payloads are copied without recompressing
+    // them; legacy loose objects and old deltas are decoded and encoded again.
+    private void writeWhole(int type, String id) throws IOException {
+        depths.put(id, 0);
+        PackFile pack = store.findPack(type, id);
+        if (pack != null) {
+            int position = pack.find(id);
+            if (pack.typeAt(position) == PackFile.TYPE_BLOB_DELTA) {
+                writeEncoded(type, id, pack.content(position));
+            } else {
+                writer.add(id, type, pack.encodingAt(position), pack.storedPayloadAt(position));
+                written.add(id);
+            }
+            forgetLooseCopy(type, id);
+            return;
+        }
+
+        File file = store.looseFile(type, id);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()),
+                ObjectStore.BUFFER_SIZE)) {
+            byte[] header = in.readNBytes(ObjectStore.LOOSE_HEADER_LENGTH);
+            if (ObjectStore.isLooseHeader(header)) {
+                long payloadLength = file.length() - ObjectStore.LOOSE_HEADER_LENGTH;
+                if (!PackWriter.fits(payloadLength)) {
+                    return;
+                }
+                writer.add(id, type, header[ObjectStore.LOOSE_MAGIC.length], in, payloadLength);
+                written.add(id);
+                packedLooseFiles.add(file);
+                return;
+            }
+        }
+        byte[] raw = (type == PackFile.TYPE_BLOB)
+                ? readObject(file, Blob.class).getFileContent()
+                : readContents(file);
+        writeEncoded(type, id, raw);
+        if (written.contains(id)) {
+            packedLooseFiles.add(file);
+        }
+    }
+
+    private void writeEncoded(int type, String id, byte[] raw) throws IOException {
+        byte[] payload = store.encodePayload(raw);
+        if (PackWriter.fits(payload.length)) {
+            writer.add(id, type, store.payloadEncoding(), payload);
+            written.add(id);
+        }
+    }
+
+    // A packed object may also have a loose copy, which is now redundant.
+    private void forgetLooseCopy(int type, String id) {
+        File file = store.looseFile(type, id);
+        if (file.exists()) {
+            packedLooseFiles.add(file);
+        }
+    }
+
+    private long storedLength(String blobID) {
+        PackFile pack = store.findPack(PackFile.TYPE_BLOB, blobID);
+        if (pack != null) {
+            return pack.payloadLengthAt(pack.find(blobID));
+        }
+        return store.looseFile(PackFile.TYPE_BLOB, blobID).length();
+    }
+}
@@ -3,7 +3,13 @@ package gitlet;
 import java.io.File;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static gitlet.Utils.*;
 
@@ -29,6 +35,8 @@ public class Repository implements Serializable {
     public static final File COMMITS_DIR = join(GITLET_DIR, "commits");
     /** The .gitlet/blobs directory. */
     public static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
+    /** The .gitlet/trees directory. */
+    public static final File TREES_DIR = join(GITLET_DIR, "trees");
     /** The .gitlet/refs directory. (stores branches) */
     public static final File REFS_DIR = join(GITLET_DIR, "refs");
     /** The .gitlet/refs/heads directory. (stores local branches) */
@@ -43,9 +51,10 @@ public class Repository implements Serializable {
         if (GITLET_DIR.exists()) {
             System.out.println("A Gitlet version-control system already exists"
                                + "in the current directory.");
-            System.exit(0);
+            Main.exit(0);
         }
         GITLET_DIR.mkdir();
+        ObjectStore.writeFormatVersion(GITLET_DIR);
 
         COMMITS_DIR.mkdir();
         Commit initialCommit = new Commit();
@@ -53,6 +62,7 @@ public class Repository implements Serializable {
         String initialCommitID = initialCommit.getCommitID();
 
         BLOBS_DIR.mkdir();
+        TREES_DIR.mkdir();
         REFS_DIR.mkdir();
         HEADS_DIR.mkdir();
         REMOTES_DIR.mkdir();
@@ -62,18 +72,58 @@ public class Repository implements Serializable {
         writeContents(HEAD, initialBranchName);
     }
 
-    // Add a file to the stage.
-    public static void add(String fileName) {
-        File fileToBeAdded = join(CWD, fileName);
-        if (!fileToBeAdded.exists()) {
+    // Add files to the stage: file names, "." for every file in the CWD and
+    // glob patterns such as "*.txt". Nothing is staged if a path matches no
+    // file. The stage is read and written once however many files there are.
+    public static void add(List<String> paths) {
+        List<String> cwdFiles = plainFilenamesIn(CWD);
+        SortedSet<String> fileNames = expandPaths(paths, cwdFiles);
+        if (fileNames == null || !cwdFiles.containsAll(fileNames)) {
             System.out.println("File does not exist.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
         String currentCommitID = Branch.getCurrentCommitID();
-        stagingArea.addFile(fileToBeAdded, currentCommitID);
+        stagingArea.addFiles(new ArrayList<>(fileNames), currentCommitID,
+                Runtime.getRuntime().availableProcessors());
         stagingArea.saveStagingArea();
+        StatCache.local().save();
+    }
+
+    // The file names PATHS stand for. A glob pattern or "." stands for the
+    // matching CANDIDATES, any other path for its name relative to the CWD.
+    // Returns null if a pattern matches nothing.
+    private static SortedSet<String> expandPaths(List<String> paths,
+                                                 Collection<String> candidates) {
+        SortedSet<String> fileNames = new TreeSet<>();
+        Path cwd = CWD.toPath().toAbsolutePath().normalize();
+        for (String path : paths) {
+            if (candidates.contains(path)) {
+                fileNames.add(path);
+                continue;
+            }
+            if (path.matches(".*[*?\\[{].*")) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+                int before = fileNames.size();
+                for (String candidate : candidates) {
+                    if (matcher.matches(Paths.get(candidate))) {
+                        fileNames.add(candidate);
+                    }
+                }
+                if (fileNames.size() == before) {
+                    return null;
+                }
+                continue;
+            }
+            String relative = cwd.relativize(cwd.resolve(path).normalize()).toString();
+            if (relative.isEmpty()) {
+                fileNames.addAll(candidates);
+            } else {
+                fileNames.add(relative);
+            }
+        }
+        return fileNames;
     }
 
     public static void commit(String message) {
@@ -84,28 +134,29 @@ public class Repository implements Serializable {
         // Failure cases if there is no commit message or changes added to the commit.
         if (message.isEmpty()) {
             System.out.println("Please enter a commit message.");
-            System.exit(0);
+            Main.exit(0);
         }
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
         List<String> stageForRemoval = stagingArea.getStageForRemoval();
         if (stageForAddition.isEmpty() && stageForRemoval.isEmpty()) {
             System.out.println("No changes added to the commit.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         // Operate addition and removal and produce a new commit.
         String currentCommitID = Branch.getCurrentCommitID();
+        // Only the trees on the paths of staged files are rewritten.
         Commit currentCommit = Commit.findCommit(currentCommitID);
-        Map<String, String> newFileMap = new HashMap<>(currentCommit.getFileNameToBlobID());
-        for (String fileName : stageForAddition.keySet()) {
-            newFileMap.put(fileName, stageForAddition.get(fileName));
-        }
+        Map<String, String> changes = new HashMap<>(stageForAddition);
         for (String fileName : stageForRemoval) {
-            newFileMap.remove(fileName);
+            changes.put(fileName, null);
         }
+        String treeID = Tree.update(ObjectStore.local(),
+                currentCommit.getOrWriteTreeID(), changes);
         Commit newCommit = Commit.createMergeCommit(message,
-                currentCommitID, secondParentID, newFileMap);
+                currentCommitID, secondParentID, treeID);
+        newCommit.inheritFiles(currentCommit, changes);
         newCommit.saveCommit();
 
         // Update the current branch and staging area.
@@ -115,61 +166,88 @@ public class Repository implements Serializable {
         stagingArea.saveStagingArea();
     }
 
-    // Remove a file from the CWD. The change will be committed in the next commit.
-    public static void remove(String fileName) {
-        // If the file is neither in the addition stage nor current commit files,
+    // Remove files from the CWD. The change will be committed in the next commit.
+    // PATHS are expanded like those of add, against the staged and tracked files.
+    public static void remove(List<String> paths) {
+        // If a file is neither in the addition stage nor current commit files,
         // then there is no reason to remove it.
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
         String currentCommitID = Branch.getCurrentCommitID();
         Commit currentCommit = Commit.findCommit(currentCommitID);
         Map<String, String> currentFileMap = currentCommit.getFileNameToBlobID();
-        if (!stageForAddition.containsKey(fileName) && !currentFileMap.containsKey(fileName)) {
+        Set<String> removable = new TreeSet<>(currentFileMap.keySet());
+        removable.addAll(stageForAddition.keySet());
+        SortedSet<String> fileNames = expandPaths(paths, removable);
+        if (fileNames == null || !removable.containsAll(fileNames)) {
             System.out.println("No reason to remove this file.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        File fileToBeRemoved = join(CWD, fileName);
-        stagingArea.removeFile(fileToBeRemoved, currentFileMap);
+        stagingArea.removeFiles(new ArrayList<>(fileNames), currentFileMap,
+                Runtime.getRuntime().availableProcessors());
         stagingArea.saveStagingArea();
+        StatCache.local().save();
     }
 
     // Print out commits history from the current commit to the initial commit.
-    public static void log() {
-        String currentCommitID = Branch.getCurrentCommitID();
-        Commit currentCommit = Commit.findCommit(currentCommitID);
-        while (currentCommit != null) {
-            System.out.println(currentCommit);
-            String parentCommitID = currentCommit.getParentCommitID();
-            if (parentCommitID == null) {
+    // The history is followed through the commit-graph; only the commits
+    // printed are read. With ABBREVIATE, every commit is shown by its
+    // shortest unique prefix of at least seven characters.
+    public static void log(boolean abbreviate) {
+        ObjectStore store = ObjectStore.local();
+        CommitGraph graph = store.commitGraph();
+        CommitIdIndex index = abbreviate ? CommitIdIndex.open(store) : null;
+        String commitID = Branch.getCurrentCommitID();
+        while (commitID != null) {
+            Commit commit = Commit.findCommit(commitID);
+            if (commit == null) {
                 break;
             }
-            currentCommit = Commit.findCommit(parentCommitID);
+            System.out.println(abbreviate
+                    ? commit.format(index.shortestUniquePrefix(commitID, 7)) : commit);
+            List<String> parents = graph.parents(commitID);
+            commitID = parents.isEmpty() ? null : parents.get(0);
         }
     }
 
     // "Log" but ignores the order.
     public static void globalLog() {
         // 'Commits' returned here are actually their commitID.
-        List<String> commits = plainFilenamesIn(COMMITS_DIR);
+        List<String> commits = ObjectStore.local().listCommits();
         for (String commit : commits) {
             System.out.println(Commit.findCommit(commit));
         }
     }
 
-    // Find commits with a given message.
-    public static void find(String message) {
-        List<String> commits = plainFilenamesIn(COMMITS_DIR);
-        List<String> matchingCommits = new ArrayList<>();
-        for (String commit : commits) {
-            if (Commit.findCommit(commit).getMessage().equals(message)) {
-                matchingCommits.add(commit);
+    // Find commits with a given message, through the MessageIndex. With
+    // OPTION "--contains" MESSAGE lists words that must all occur in the
+    // message, and with "--regex" it is a pattern to search the message for.
+    public static void find(String option, String message) {
+        MessageIndex index = MessageIndex.open(ObjectStore.local());
+        Set<String> matchingCommits;
+        if (option == null) {
+            matchingCommits = index.withMessage(message);
+        } else if (option.equals("--contains")) {
+            matchingCommits = index.containing(message);
+        } else if (option.equals("--regex")) {
+            Pattern pattern = null;
+            try {
+                pattern = Pattern.compile(message);
+            } catch (PatternSyntaxException excp) {
+                System.out.println("Invalid regular expression.");
+                Main.exit(0);
             }
+            matchingCommits = index.matching(pattern);
+        } else {
+            System.out.println("Incorrect operands.");
+            Main.exit(0);
+            return;
         }
 
         if (matchingCommits.isEmpty()) {
             System.out.println("Found no commit with that message.");
-            System.exit(0);
+            Main.exit(0);
         } else {
             for (String matchingCommit : matchingCommits) {
                 System.out.println(matchingCommit);
@@ -177,8 +255,9 @@ public class Repository implements Serializable {
         }
     }
 
-    // Print out different categories of status of the files.
-    public static void status() {
+    // Print out different categories of status of the files, hashing changed
+    // files on up to JOBS threads.
+    public static void status(int jobs) {
         System.out.println("=== Branches ===");
         String currentBranchName = Branch.getCurrentBranchName();
         List<String> branchNames = plainFilenamesIn(HEADS_DIR);
@@ -195,13 +274,13 @@ public class Repository implements Serializable {
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
         List<String> stageForRemoval = stagingArea.getStageForRemoval();
         System.out.println("=== Staged Files ===");
-        for (String fileName : stageForAddition.keySet()) {
+        for (String fileName : new TreeSet<>(stageForAddition.keySet())) {
             System.out.println(fileName);
         }
         System.out.println();
 
         System.out.println("=== Removed Files ===");
-        for (String fileName : stageForRemoval) {
+        for (String fileName : new TreeSet<>(stageForRemoval)) {
             System.out.println(fileName);
         }
         System.out.println();
@@ -209,10 +288,11 @@ public class Repository implements Serializable {
         String currentCommitID = Branch.getCurrentCommitID();
         Commit currentCommit = Commit.findCommit(currentCommitID);
         System.out.println("=== Modifications Not Staged For Commit ===");
-        for (String fileName : currentCommit.getModifiedNotStagedFiles()) {
+        for (String fileName : currentCommit.getModifiedNotStagedFiles(jobs)) {
             System.out.println(fileName);
         }
         System.out.println();
+        StatCache.local().save();
 
         System.out.println("=== Untracked Files ===");
         for (String fileName : currentCommit.getUntrackedFiles()) {
@@ -236,19 +316,17 @@ public class Repository implements Serializable {
         }
         if (targetCommit == null) {
             System.out.println("No commit with that id exists.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        Map<String, String> targetFileMap = targetCommit.getFileNameToBlobID();
-        if (!targetFileMap.containsKey(fileName)) {
+        String blobID = targetCommit.getBlobID(fileName);
+        if (blobID == null) {
             System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        String blobID = targetFileMap.get(fileName);
-        byte[] blobContent = Blob.getBlobContent(blobID);
         File fileToBeCheckedOut = join(CWD, fileName);
-        writeContents(fileToBeCheckedOut, blobContent);
+        Blob.writeBlobContent(blobID, fileToBeCheckedOut);
     }
 
     // Turn to the given branch.
@@ -256,12 +334,12 @@ public class Repository implements Serializable {
         File branchToBeCheckedOutFile = Branch.getBranchFile(branchName);
         if (!branchToBeCheckedOutFile.exists()) {
             System.out.println("No such branch exists.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         if (branchName.equals(Branch.getCurrentBranchName())) {
             System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         Branch.checkOutBranchFiles(branchName);
@@ -272,7 +350,7 @@ public class Repository implements Serializable {
         List<String> branches = plainFilenamesIn(HEADS_DIR);
         if (branches.contains(branchName)) {
             System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         Branch.createBranch(branchName, Branch.getCurrentCommitID());
@@ -282,11 +360,11 @@ public class Repository implements Serializable {
         File branchFile = join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
             System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            Main.exit(0);
         }
         if (branchName.equals(Branch.getCurrentBranchName())) {
             System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         branchFile.delete();
@@ -302,11 +380,11 @@ public class Repository implements Serializable {
         }
         if (targetCommit == null) {
             System.out.println("No commit with that id exists.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        Branch.checkOutCommit(commitID);
-        Branch.updateBranch(Branch.getCurrentBranchName(), commitID);
+        Branch.checkOutCommit(targetCommit.getCommitID());
+        Branch.updateBranch(Branch.getCurrentBranchName(), targetCommit.getCommitID());
     }
 
     // Merge two branches together.
@@ -314,12 +392,12 @@ public class Repository implements Serializable {
         File branchFile = join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
             System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            Main.exit(0);
         }
         String currentBranchName = Branch.getCurrentBranchName();
         if (branchName.equals(currentBranchName)) {
             System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
@@ -328,25 +406,24 @@ public class Repository implements Serializable {
         if (!stageForAddition.isEmpty()
                 || !stageForRemoval.isEmpty()) {
             System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            Main.exit(0);
         }
         Commit currentCommit = Commit.findCommit(Branch.getCurrentCommitID());
         Commit branchCommit = Commit.findCommit(Branch.getBranchCurrentCommitID(branchName));
-        Map<String, String> branchFileMap = branchCommit.getFileNameToBlobID();
         List<String> currentUntrackedFiles = new ArrayList<>();
         for (String file : currentCommit.getUntrackedFiles()) {
             String fileBlobID = Blob.getBlobID(file);
-            if (!branchFileMap.containsKey(file)
-                    || !fileBlobID.equals(branchFileMap.get(file))) {
+            if (!fileBlobID.equals(branchCommit.getBlobID(file))) {
                 // if the file is also untracked in the given branch,
                 // or with different content than in the given branch.
                 currentUntrackedFiles.add(file);
             }
         }
+        StatCache.local().save();
         if (!currentUntrackedFiles.isEmpty()) {
             System.out.println("There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         String branchCommitID = Branch.getBranchCurrentCommitID(branchName);
@@ -394,10 +471,14 @@ public class Repository implements Serializable {
     public static void pushRemote(String remoteName, String branchName) {
         Remote remote = Remote.loadRemotes();
         String remotePath = remote.getRemotePath(remoteName);
+        if (remotePath != null && TransferClient.isAddress(remotePath)) {
+            TransferClient.push(remotePath, branchName, Branch.getCurrentCommitID());
+            return;
+        }
         File remoteGitletDir = new File(remotePath);
         if (!remoteGitletDir.exists()) {
             System.out.println("Remote directory not found.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         File remoteBranchFile = join(remoteGitletDir, "refs", "heads", branchName);
@@ -407,10 +488,9 @@ public class Repository implements Serializable {
 
         String currentCommitID = Branch.getCurrentCommitID();
         String branchCommitID = readContentsAsString(remoteBranchFile);
-        String splitPointID = Branch.findSplitPoint(branchCommitID);
-        if (splitPointID == null || !splitPointID.equals(branchCommitID)) {
+        if (!ObjectStore.local().commitGraph().isAncestor(branchCommitID, currentCommitID)) {
             System.out.println("Please pull down remote changes before pushing.");
-            System.exit(0);
+            Main.exit(0);
         } else {
             Remote.copyCommitsToRemote(currentCommitID, remoteGitletDir);
         }
@@ -422,16 +502,21 @@ public class Repository implements Serializable {
     public static void fetchRemote(String remoteName, String branchName) {
         Remote remote = Remote.loadRemotes();
         String remotePath = remote.getRemotePath(remoteName);
+        if (remotePath != null && TransferClient.isAddress(remotePath)) {
+            String remoteCommitID = TransferClient.fetch(remotePath, branchName);
+            writeContents(join(HEADS_DIR, remoteName + "_" + branchName), remoteCommitID);
+            return;
+        }
         File remoteGitletDir = new File(remotePath);
         if (!remoteGitletDir.exists()) {
             System.out.println("Remote directory not found.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         File remoteBranchFile = join(remoteGitletDir, "refs", "heads", branchName);
         if (!remoteBranchFile.exists()) {
             System.out.println("That remote does not have that branch.");
-            System.exit(0);
+            Main.exit(0);
         }
 
         String remoteCurrentCommitID = readContentsAsString(remoteBranchFile);
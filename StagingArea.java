@@ -1,87 +1,318 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import static gitlet.Utils.*;
 
+/**
+ * The files staged for addition and removal.
+ *
+ * The stage is kept as a snapshot, .gitlet/stage, and a journal of the
+ * changes made since, .gitlet/stage-journal, which is replayed on top of
+ * the snapshot when the stage is read. Reading the stage writes nothing,
+ * and saving it appends only the changes made since it was read. Once the
+ * journal is larger than both JOURNAL_LIMIT and the snapshot, or the stage
+ * is empty, the snapshot is rewritten and the journal deleted.
+ *
+ * Saving holds .gitlet/stage.lock. If another process saved since the stage
+ * was read, the stage is read again and the changes made since are applied
+ * on top of it, so neither process's changes are lost.
+ *
+ * Journal records are an operation byte and a file name in UTF, followed
+ * by the raw blob ID for OP_ADD. Replaying a record twice has the same
+ * effect as replaying it once, so a journal left behind by an interrupted
+ * compaction is harmless, and an incomplete last record is ignored.
+ */
 public class StagingArea implements Serializable {
 
+    /** Pinned so that stages written by earlier versions stay readable. */
+    @Serial
+    private static final long serialVersionUID = -6625539279090308672L;
+    /** Journal operation: stage a file for addition with a blob. */
+    private static final int OP_ADD = 1;
+    /** Journal operation: stage a tracked file for removal. */
+    private static final int OP_REMOVE = 2;
+    /** Journal operation: unstage a file. */
+    private static final int OP_UNSTAGE = 3;
+    /** Journal operation: unstage all files. */
+    private static final int OP_CLEAR = 4;
+    /** The journal size below which the snapshot is never rewritten. */
+    private static final long JOURNAL_LIMIT = 64 * 1024;
+
     /** A map stores the file names along with their blobIDs */
     private Map<String, String> stageForAddition;
     /** A list stores the file names */
     private List<String> stageForRemoval;
+    /** Serializes saves within this process; the lock file only excludes others. */
+    private static final Object SAVE_LOCK = new Object();
+
+    /** The length of the journal records that were read or written. */
+    private transient long journalLength;
+    /** The time and length of the snapshot when it was read or written. */
+    private transient String snapshotStamp;
+    /** The journal records of the changes not saved yet. */
+    private transient ByteArrayOutputStream pending;
 
-    // If the file "stage" already exists, then read its content.
-    // Otherwise, create a new "stage" file.
+    // Read the snapshot, if there is one, and replay the journal on it.
     private StagingArea() {
-        if (Repository.GITLET_DIR.exists()) {
-            File stageFile = join(Repository.GITLET_DIR, "stage");
-            if (stageFile.exists()) {
-                StagingArea stagingArea = readObject(stageFile, StagingArea.class);
-                stageForAddition = stagingArea.stageForAddition;
-                stageForRemoval = stagingArea.stageForRemoval;
-                this.saveStagingArea();
-            } else {
-                stageForAddition = new HashMap<>();
-                stageForRemoval = new ArrayList<>();
-                this.saveStagingArea();
-            }
+        stageForAddition = new HashMap<>();
+        stageForRemoval = new ArrayList<>();
+        pending = new ByteArrayOutputStream();
+        File stageFile = stageFile();
+        snapshotStamp = snapshotStamp();
+        if (stageFile.exists()) {
+            StagingArea stagingArea = readObject(stageFile, StagingArea.class);
+            stageForAddition = stagingArea.stageForAddition;
+            stageForRemoval = stagingArea.stageForRemoval;
         }
+        File journalFile = journalFile();
+        if (journalFile.exists()) {
+            journalLength = replay(readContents(journalFile));
+        }
+    }
+
+    private StagingArea(StagingArea other) {
+        stageForAddition = new HashMap<>(other.stageForAddition);
+        stageForRemoval = new ArrayList<>(other.stageForRemoval);
+        journalLength = other.journalLength;
+        snapshotStamp = other.snapshotStamp;
+        pending = new ByteArrayOutputStream();
+    }
+
+    private static File stageFile() {
+        return join(Repository.GITLET_DIR, "stage");
+    }
+
+    private static File journalFile() {
+        return join(Repository.GITLET_DIR, "stage-journal");
+    }
+
+    private static File lockFile() {
+        return join(Repository.GITLET_DIR, "stage.lock");
     }
 
+    private static String snapshotStamp() {
+        File stageFile = stageFile();
+        return stageFile.lastModified() + " " + stageFile.length();
+    }
+
+    // The staging area is kept in the ObjectCache under the sizes and times
+    // of the snapshot and the journal, so a stage written by another process
+    // is read again. Callers get their own copy to change.
     public static StagingArea getStagingArea() {
-        return new StagingArea();
+        String cacheKey = cacheKey();
+        StagingArea cached = (StagingArea) ObjectCache.get(cacheKey);
+        if (cached == null) {
+            cached = new StagingArea();
+            cached.cache(cacheKey);
+        }
+        return new StagingArea(cached);
     }
 
+    // Write the changes made since the stage was read.
     public void saveStagingArea() {
-        File stageFile = join(Repository.GITLET_DIR, "stage");
-        writeObject(stageFile, this);
+        if (pending.size() == 0) {
+            return;
+        }
+        synchronized (SAVE_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(lockFile().toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = lockChannel.lock()) {
+                save();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        new StagingArea(this).cache(cacheKey());
     }
 
-    public void addFile(File fileToBeAdded, String currentCommitID) {
-        String fileName = fileToBeAdded.getName();
-        if (stageForRemoval.contains(fileName)) {
-            stageForRemoval.remove(fileName);
+    // Save while holding the lock file.
+    private void save() throws IOException {
+        File journalFile = journalFile();
+        if (!snapshotStamp.equals(snapshotStamp()) || journalFile.length() != journalLength) {
+            // Another process saved meanwhile: start from its stage.
+            StagingArea current = new StagingArea();
+            current.replay(pending.toByteArray());
+            stageForAddition = current.stageForAddition;
+            stageForRemoval = current.stageForRemoval;
+            journalLength = current.journalLength;
+            snapshotStamp = current.snapshotStamp;
+        }
+        try (FileChannel journal = FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drop an incomplete record left by an interrupted save.
+            journal.truncate(journalLength);
+            journal.position(journalLength);
+            journal.write(ByteBuffer.wrap(pending.toByteArray()));
+        }
+        journalLength += pending.size();
+        pending.reset();
+
+        File stageFile = stageFile();
+        boolean empty = stageForAddition.isEmpty() && stageForRemoval.isEmpty();
+        if (empty || journalLength > Math.max(JOURNAL_LIMIT, stageFile.length())) {
+            compact();
         }
+    }
 
+    // Rewrite the snapshot with the current stage and delete the journal.
+    private void compact() {
+        File stageFile = stageFile();
+        try {
+            File temp = Files.createTempFile(Repository.GITLET_DIR.toPath(),
+                    "tmp_stage_", null).toFile();
+            writeObject(temp, this);
+            Files.move(temp.toPath(), stageFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(journalFile().toPath());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        journalLength = 0;
+        snapshotStamp = snapshotStamp();
+    }
+
+    private void cache(String cacheKey) {
+        ObjectCache.put(cacheKey, this,
+                128L * (stageForAddition.size() + stageForRemoval.size()) + 64);
+    }
+
+    private static String cacheKey() {
+        File stageFile = stageFile();
+        File journalFile = journalFile();
+        return "stage " + stageFile + " " + stageFile.lastModified() + " " + stageFile.length()
+                + " " + journalFile.lastModified() + " " + journalFile.length();
+    }
+
+    // Apply the complete records of JOURNAL and return their length.
+    private int replay(byte[] journal) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        int length = 0;
+        try {
+            while (in.available() > 0) {
+                int op = in.readByte();
+                String fileName = in.readUTF();
+                String blobID = null;
+                if (op == OP_ADD) {
+                    byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+                    in.readFully(id);
+                    blobID = toHex(id);
+                }
+                apply(op, fileName, blobID);
+                length = journal.length - in.available();
+            }
+        } catch (IOException excp) {
+            // The last record is incomplete; it is overwritten by the next save.
+        }
+        return length;
+    }
+
+    // Apply one operation to the stage.
+    private void apply(int op, String fileName, String blobID) {
+        switch (op) {
+            case OP_ADD:
+                stageForRemoval.remove(fileName);
+                stageForAddition.put(fileName, blobID);
+                break;
+            case OP_REMOVE:
+                stageForAddition.remove(fileName);
+                if (!stageForRemoval.contains(fileName)) {
+                    stageForRemoval.add(fileName);
+                }
+                break;
+            case OP_UNSTAGE:
+                stageForAddition.remove(fileName);
+                stageForRemoval.remove(fileName);
+                break;
+            case OP_CLEAR:
+                stageForAddition.clear();
+                stageForRemoval.clear();
+                break;
+            default:
+                throw error("Corrupt stage journal.");
+        }
+    }
+
+    // Apply one operation and record it for the next save.
+    private void change(int op, String fileName, String blobID) {
+        apply(op, fileName, blobID);
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeByte(op);
+            out.writeUTF(fileName);
+            if (blobID != null) {
+                out.write(fromHex(blobID));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Stage the working files FILENAMES. The current commit is read once,
+    // and the files are hashed and stored on up to JOBS threads.
+    public void addFiles(List<String> fileNames, String currentCommitID, int jobs) {
         Commit currentCommit = Commit.findCommit(currentCommitID);
         Map<String, String> currentFileMap = currentCommit.getFileNameToBlobID();
 
-        // Check if the file added is identical to any file in currentFileMap
-        Blob newBlob = new Blob(readContents(fileToBeAdded));
-        String newBlobID = newBlob.getBlobID();
-        if (newBlobID.equals(currentFileMap.get(fileName))) {
-            if (stageForAddition.containsKey(fileName)) {
-                stageForAddition.remove(fileName);
+        // Hash and store each file in one streaming pass; if it turns out to
+        // be identical to the file in currentFileMap, the blob already exists.
+        // A file the StatCache knows to be stored already is not read at all.
+        Map<String, String> newBlobIDs = StatCache.local()
+                .storeBlobs(fileNames, ObjectStore.local(), jobs);
+        for (String fileName : fileNames) {
+            String newBlobID = newBlobIDs.get(fileName);
+            if (newBlobID.equals(currentFileMap.get(fileName))) {
+                change(OP_UNSTAGE, fileName, null);
+            } else {
+                change(OP_ADD, fileName, newBlobID);
             }
-            return;
         }
-        stageForAddition.put(fileName, newBlobID);
-        newBlob.saveBlob();
     }
 
-    public void removeFile(File fileToBeRemoved, Map<String, String> currentFileMap) {
-        String fileName = fileToBeRemoved.getName();
-        if (stageForAddition.containsKey(fileName)) {
-            stageForAddition.remove(fileName);
+    // Unstage FILENAMES and stage the tracked ones for removal, deleting
+    // their working copies unless they were modified since the commit.
+    public void removeFiles(List<String> fileNames, Map<String, String> currentFileMap,
+                            int jobs) {
+        List<String> trackedFiles = new ArrayList<>();
+        List<String> presentFiles = new ArrayList<>();
+        for (String fileName : fileNames) {
+            if (!currentFileMap.containsKey(fileName)) {
+                change(OP_UNSTAGE, fileName, null);
+            } else {
+                trackedFiles.add(fileName);
+                if (join(Repository.CWD, fileName).isFile()) {
+                    presentFiles.add(fileName);
+                }
+            }
         }
 
-        if (currentFileMap.containsKey(fileName)) {
+        Map<String, String> workingBlobIDs = StatCache.local().blobIDs(presentFiles, jobs);
+        for (String fileName : trackedFiles) {
             String fileBlobID = currentFileMap.get(fileName);
-            stageForRemoval.add(fileName);
-            if (fileToBeRemoved.exists() && fileBlobID.equals(Blob.getBlobID(fileName))) {
+            change(OP_REMOVE, fileName, null);
+            if (fileBlobID.equals(workingBlobIDs.get(fileName))) {
                 restrictedDelete(fileName);
             }
         }
     }
 
     public void clear() {
-        stageForAddition.clear();
-        stageForRemoval.clear();
+        change(OP_CLEAR, "", null);
     }
 
     public Map<String, String> getStageForAddition() {
@@ -0,0 +1,273 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Remembers the blob ID of working files together with their size,
+ * modification time and file key (the inode on Unix), so that status, add,
+ * rm and merge only hash files whose metadata changed since they were last
+ * hashed. The cache lives in .gitlet/stat-cache.
+ *
+ * A file modified again within the timestamp granularity of the file system
+ * keeps its modification time, so an entry is only recorded for a file that
+ * was last modified at least RACY_MARGIN_NANOS before it was hashed. Files
+ * edited just before a command are therefore hashed again next time, until
+ * their timestamp is old enough to tell later edits apart.
+ *
+ * File: magic "GSTC", version, entry count, then for every entry the file
+ * name and file key as UTF strings, the size and the modification time in
+ * nanoseconds as longs, and the raw blob ID.
+ */
+class StatCache {
+
+    /** The magic bytes that start the file. */
+    private static final byte[] MAGIC = {'G', 'S', 'T', 'C'};
+    /** The file format version. */
+    private static final int VERSION = 1;
+    /** How long before it was hashed a file must have been last modified. */
+    private static final long RACY_MARGIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    /** The cache of the current repository, kept for as long as its file is unchanged. */
+    private static StatCache local;
+
+    /** The stat-cache file. */
+    private final File file;
+    /** The cached entries by file name. */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** Whether entries changed since the file was read. */
+    private boolean dirty = false;
+    /** The size and time of the file when it was read or written last. */
+    private String fileStamp;
+
+    private StatCache(File file) {
+        this.file = file;
+        fileStamp = stamp(file);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file.toPath())))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String fileName = in.readUTF();
+                String fileKey = in.readUTF();
+                long size = in.readLong();
+                long modifiedNanos = in.readLong();
+                byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+                in.readFully(id);
+                entries.put(fileName, new Entry(size, modifiedNanos, fileKey, toHex(id)));
+            }
+        } catch (IOException excp) {
+            // A damaged cache only costs hashing; start over with an empty one.
+            entries.clear();
+        }
+    }
+
+    // The stat cache of the repository in the current working directory.
+    static StatCache local() {
+        File cacheFile = join(Repository.GITLET_DIR, "stat-cache");
+        if (local == null || !local.fileStamp.equals(stamp(cacheFile))) {
+            local = new StatCache(cacheFile);
+        }
+        return local;
+    }
+
+    private static String stamp(File file) {
+        return file.lastModified() + " " + file.length();
+    }
+
+    // The blob ID of the working file FILENAME, hashing the file only if its
+    // size, time or file key differs from the cached entry.
+    String blobID(String fileName) {
+        File workingFile = join(Repository.CWD, fileName);
+        String cached = lookup(fileName, workingFile);
+        if (cached != null) {
+            return cached;
+        }
+        long hashedAt = System.currentTimeMillis();
+        String blobID = ObjectStore.hashFile(workingFile);
+        record(fileName, workingFile, blobID, hashedAt);
+        return blobID;
+    }
+
+    // The blob IDs of the working files FILENAMES. Files the cache cannot
+    // vouch for are hashed on up to JOBS threads, each with its own digest.
+    Map<String, String> blobIDs(List<String> fileNames, int jobs) {
+        return resolve(fileNames, jobs, blobID -> true, ObjectStore::hashFile);
+    }
+
+    // Like blobIDs, but also store the blobs in STORE. Files whose cached
+    // blob STORE has already are not read at all.
+    Map<String, String> storeBlobs(List<String> fileNames, ObjectStore store, int jobs) {
+        store.prepareForThreads();
+        return resolve(fileNames, jobs, blobID -> store.freshen(PackFile.TYPE_BLOB, blobID),
+                store::storeBlob);
+    }
+
+    // The blob IDs of FILENAMES: cached ones that are USABLE, and otherwise
+    // what HASHER returns, called for several files at once.
+    private Map<String, String> resolve(List<String> fileNames, int jobs,
+                                        Predicate<String> usable,
+                                        Function<File, String> hasher) {
+        Map<String, String> blobIDs = new HashMap<>();
+        List<String> toHash = new ArrayList<>();
+        for (String fileName : fileNames) {
+            String cached = lookup(fileName, join(Repository.CWD, fileName));
+            if (cached == null || !usable.test(cached)) {
+                toHash.add(fileName);
+            } else {
+                blobIDs.put(fileName, cached);
+            }
+        }
+        long hashedAt = System.currentTimeMillis();
+        String[] hashed = new String[toHash.size()];
+        IntStream indexes = IntStream.range(0, hashed.length);
+        if (jobs > 1 && hashed.length > 1) {
+            ForkJoinPool pool = new ForkJoinPool(jobs);
+            try {
+                pool.submit(() -> indexes.parallel().forEach(i ->
+                        hashed[i] = hasher.apply(join(Repository.CWD, toHash.get(i)))))
+                        .get();
+            } catch (ExecutionException excp) {
+                throw new IllegalArgumentException(excp.getCause().getMessage());
+            } catch (InterruptedException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            indexes.forEach(i -> hashed[i] = hasher.apply(join(Repository.CWD, toHash.get(i))));
+        }
+        for (int i = 0; i < hashed.length; i += 1) {
+            String fileName = toHash.get(i);
+            record(fileName, join(Repository.CWD, fileName), hashed[i], hashedAt);
+            blobIDs.put(fileName, hashed[i]);
+        }
+        return blobIDs;
+    }
+
+    // The cached blob ID of FILE, or null if it may have changed.
+    String lookup(String fileName, File workingFile) {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            return null;
+        }
+        Entry current = readEntry(workingFile, null);
+        if (current == null || current.size != entry.size
+                || current.modifiedNanos != entry.modifiedNanos
+                || !current.fileKey.equals(entry.fileKey)) {
+            entries.remove(fileName);
+            dirty = true;
+            return null;
+        }
+        return entry.blobID;
+    }
+
+    // Remember that FILE, hashed at HASHEDAT in epoch milliseconds, has the
+    // blob BLOBID, unless it was modified too recently to be sure.
+    void record(String fileName, File workingFile, String blobID, long hashedAt) {
+        Entry entry = readEntry(workingFile, blobID);
+        if (entry == null
+                || TimeUnit.MILLISECONDS.toNanos(hashedAt) - entry.modifiedNanos
+                        < RACY_MARGIN_NANOS) {
+            return;
+        }
+        entries.put(fileName, entry);
+        dirty = true;
+    }
+
+    // Write the cache back if it changed, dropping entries of files that
+    // no longer exist.
+    void save() {
+        if (!dirty) {
+            return;
+        }
+        Iterator<String> fileNames = entries.keySet().iterator();
+        while (fileNames.hasNext()) {
+            if (!join(Repository.CWD, fileNames.next()).isFile()) {
+                fileNames.remove();
+            }
+        }
+        try {
+            File temp = Files.createTempFile(file.getParentFile().toPath(),
+                    "tmp_stat_", null).toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath())))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(value.fileKey);
+                    out.writeLong(value.size);
+                    out.writeLong(value.modifiedNanos);
+                    out.write(fromHex(value.blobID));
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        dirty = false;
+        fileStamp = stamp(file);
+    }
+
+    // The current metadata of FILE with BLOBID, or null if it is not a file.
+    private static Entry readEntry(File workingFile, String blobID) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(workingFile.toPath(), BasicFileAttributes.class);
+        } catch (IOException excp) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        Object fileKey = attributes.fileKey();
+        return new Entry(attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                (fileKey == null) ? "" : fileKey.toString(), blobID);
+    }
+
+    /** The metadata a file had when it was hashed, and its blob ID. */
+    private static class Entry {
+        private final long size;
+        private final long modifiedNanos;
+        private final String fileKey;
+        private final String blobID;
+
+        Entry(long size, long modifiedNanos, String fileKey, String blobID) {
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.fileKey = fileKey;
+            this.blobID = blobID;
+        }
+    }
+}
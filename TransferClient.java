@@ -0,0 +1,156 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Push and fetch for remotes whose path is the address of a TransferServer,
+ * unix://PATH or tcp://HOST:PORT. The client works out what to push itself,
+ * so the server only stores the stream and moves the branch.
+ */
+class TransferClient {
+
+    /** The address prefix of a Unix domain socket. */
+    private static final String UNIX_PREFIX = "unix://";
+    /** The address prefix of a TCP host and port. */
+    private static final String TCP_PREFIX = "tcp://";
+
+    // Whether a remote path is a server address rather than a directory.
+    static boolean isAddress(String remotePath) {
+        return remotePath.startsWith(UNIX_PREFIX) || remotePath.startsWith(TCP_PREFIX);
+    }
+
+    // Push COMMITID to the branch BRANCHNAME of the server at ADDRESS.
+    static void push(String address, String branchName, String commitID) {
+        ObjectStore store = ObjectStore.local();
+        try (SocketChannel channel = connect(address)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel), ObjectStore.BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), ObjectStore.BUFFER_SIZE));
+            Map<String, String> heads = start(in, out, TransferServer.SERVICE_PUSH);
+            String remoteID = heads.get(branchName);
+            if (remoteID != null && !(store.hasCommit(remoteID)
+                    && store.commitGraph().isAncestor(remoteID, commitID))) {
+                System.out.println("Please pull down remote changes before pushing.");
+                Main.exit(0);
+            }
+            List<String> haveIDs = new ArrayList<>();
+            for (String headID : heads.values()) {
+                if (store.hasCommit(headID)) {
+                    haveIDs.add(headID);
+                }
+            }
+            out.writeUTF(branchName);
+            out.writeUTF((remoteID == null) ? "" : remoteID);
+            out.writeUTF(commitID);
+            PackStream stream = new PackStream(store);
+            stream.send(Remote.objectsToSend(store, commitID, haveIDs), out);
+            if (!in.readBoolean()) {
+                System.out.println(in.readUTF());
+                Main.exit(0);
+            }
+            printStats(stream);
+        } catch (IOException excp) {
+            failed(address, excp);
+        }
+    }
+
+    // Fetch the branch BRANCHNAME of the server at ADDRESS into the local
+    // store and return the commit ID it is at.
+    static String fetch(String address, String branchName) {
+        ObjectStore store = ObjectStore.local();
+        try (SocketChannel channel = connect(address)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel), ObjectStore.BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), ObjectStore.BUFFER_SIZE));
+            Map<String, String> heads = start(in, out, TransferServer.SERVICE_FETCH);
+            String remoteID = heads.get(branchName);
+            if (remoteID == null) {
+                System.out.println("That remote does not have that branch.");
+                Main.exit(0);
+            }
+            List<String> haveIDs = new ArrayList<>(Remote.heads(store).values());
+            out.writeUTF(remoteID);
+            out.writeInt(haveIDs.size());
+            for (String haveID : haveIDs) {
+                out.writeUTF(haveID);
+            }
+            out.flush();
+            if (!in.readBoolean()) {
+                System.out.println(in.readUTF());
+                Main.exit(0);
+            }
+            PackStream stream = new PackStream(store);
+            List<String> commitIDs;
+            try {
+                commitIDs = stream.receive(in);
+            } catch (GitletException excp) {
+                System.out.println(excp.getMessage());
+                Main.exit(0);
+                return null;
+            }
+            for (String commitID : commitIDs) {
+                store.indexCommit(commitID, Commit.findCommit(store, commitID).getMessage());
+            }
+            printStats(stream);
+            return remoteID;
+        } catch (IOException excp) {
+            failed(address, excp);
+            return null;
+        }
+    }
+
+    private static SocketChannel connect(String address) throws IOException {
+        if (address.startsWith(UNIX_PREFIX)) {
+            return SocketChannel.open(UnixDomainSocketAddress.of(
+                    Path.of(address.substring(UNIX_PREFIX.length()))));
+        }
+        String hostAndPort = address.substring(TCP_PREFIX.length());
+        int colon = hostAndPort.lastIndexOf(':');
+        try {
+            return SocketChannel.open(new InetSocketAddress(hostAndPort.substring(0, colon),
+                    Integer.parseInt(hostAndPort.substring(colon + 1))));
+        } catch (IndexOutOfBoundsException | IllegalArgumentException excp) {
+            throw new IOException("bad address " + address);
+        }
+    }
+
+    // Send the protocol version and SERVICE, and read the advertised branches.
+    private static Map<String, String> start(DataInputStream in, DataOutputStream out,
+                                             String service) throws IOException {
+        out.writeInt(TransferServer.PROTOCOL);
+        out.writeUTF(service);
+        out.flush();
+        Map<String, String> heads = new TreeMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i += 1) {
+            heads.put(in.readUTF(), in.readUTF());
+        }
+        return heads;
+    }
+
+    private static void printStats(PackStream stream) {
+        if (Boolean.getBoolean("gitlet.transferStats")) {
+            System.err.println("transfer: " + stream.stats());
+        }
+    }
+
+    private static void failed(String address, IOException excp) {
+        System.out.println("Cannot reach the remote at " + address + ": " + excp.getMessage());
+        Main.exit(0);
+    }
+}
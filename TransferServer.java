@@ -0,0 +1,298 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static gitlet.Utils.*;
+
+/**
+ * Serves the current repository to push and fetch from other repositories
+ * (gitlet serve), which reach it through a remote whose path is an address:
+ * unix://PATH for the Unix domain socket .gitlet/serve.sock, or
+ * tcp://HOST:PORT for a server started with a port, which listens on the
+ * loopback interface. Every transfer is one connection: the server
+ * advertises its branches, the client names what it wants or sends, and the
+ * objects travel as one PackStream.
+ *
+ * Connections are served on up to SERVER_THREADS threads. Working out what
+ * to send and storing what was received happen under one lock, which also
+ * makes moving a branch a compare-and-swap: a push only moves the branch if
+ * it is still at the commit the pusher saw, so of two concurrent pushes
+ * from the same commit only the first succeeds.
+ *
+ * The server trusts no client: PackStream checks every object against its
+ * ID, and a branch only moves to a descendant of the commit it is at, and
+ * only once everything the new commit reaches is present.
+ *
+ * Protocol, in DataOutputStream encoding. The client sends the PROTOCOL
+ * version and SERVICE_FETCH or SERVICE_PUSH; the server answers with its
+ * branches, an int count and then a UTF name and commit ID each.
+ * Fetch: the client sends the commit ID it wants and the commit IDs it has
+ * (an int count, then UTF strings); the server answers true and the
+ * PackStream, or false and a UTF message.
+ * Push: the client sends the branch name, the commit ID it saw the branch
+ * at (empty if the branch did not exist), the new commit ID and the
+ * PackStream; the server answers true, or false and a UTF message.
+ */
+class TransferServer {
+
+    /** The protocol version the client sends first. */
+    static final int PROTOCOL = 1;
+    /** Service: send objects to the client. */
+    static final String SERVICE_FETCH = "fetch";
+    /** Service: receive objects and move a branch. */
+    static final String SERVICE_PUSH = "push";
+    /** The most connections served at the same time. */
+    private static final int SERVER_THREADS = 8;
+    /** Guards the object store and the branches of the served repository. */
+    private static final Object LOCK = new Object();
+
+    // The socket file of the server of the .gitlet directory GITLETDIR.
+    static File socketFile(File gitletDir) {
+        return join(gitletDir, "serve.sock");
+    }
+
+    // Serve the current repository on PORT, or on its socket file if PORT
+    // is null, until the process is killed.
+    public static void serve(String port) {
+        if (Daemon.isServing()) {
+            System.out.println("Cannot serve from the daemon.");
+            Main.exit(0);
+        }
+        SocketAddress address;
+        File socket = null;
+        ServerSocketChannel server;
+        try {
+            if (port == null) {
+                socket = socketFile(Repository.GITLET_DIR);
+                UnixDomainSocketAddress unixAddress = UnixDomainSocketAddress.of(socket.toPath());
+                address = unixAddress;
+                if (socket.exists() && !Daemon.isListening(unixAddress)) {
+                    Files.delete(socket.toPath());
+                }
+                server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        Integer.parseInt(port));
+                server = ServerSocketChannel.open();
+            }
+            server.bind(address);
+        } catch (IOException | IllegalArgumentException excp) {
+            System.out.println("Cannot listen on " + ((port == null) ? socket.getPath() : port)
+                    + ": " + excp.getMessage());
+            Main.exit(0);
+            return;
+        }
+        if (socket != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(socket::delete));
+        }
+        // Open the store before the threads share it.
+        ObjectStore.local().packs();
+        System.out.println("Serving " + Repository.CWD.getPath() + " on "
+                + ((port == null) ? "unix://" + socket.getPath() : "tcp://localhost:" + port)
+                + ".");
+        ExecutorService pool = Executors.newFixedThreadPool(SERVER_THREADS);
+        try (server) {
+            while (true) {
+                SocketChannel client = server.accept();
+                pool.submit(() -> {
+                    try (client) {
+                        handle(client);
+                    } catch (IOException | RuntimeException excp) {
+                        // The client went away or sent garbage; it gets no answer.
+                    }
+                    return null;
+                });
+            }
+        } catch (IOException excp) {
+            System.out.println("Cannot accept connections: " + excp.getMessage());
+            Main.exit(0);
+        }
+    }
+
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(client), ObjectStore.BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(client), ObjectStore.BUFFER_SIZE));
+        if (in.readInt() != PROTOCOL) {
+            return;
+        }
+        String service = in.readUTF();
+        ObjectStore store;
+        Map<String, String> heads;
+        synchronized (LOCK) {
+            ObjectStore.revalidateAll();
+            store = ObjectStore.local();
+            heads = Remote.heads(store);
+        }
+        out.writeInt(heads.size());
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            out.writeUTF(head.getKey());
+            out.writeUTF(head.getValue());
+        }
+        out.flush();
+        if (service.equals(SERVICE_FETCH)) {
+            sendObjects(store, in, out);
+        } else if (service.equals(SERVICE_PUSH)) {
+            receiveObjects(store, in, out);
+        }
+    }
+
+    // Fetch: send the objects of the wanted commit the client lacks.
+    private static void sendObjects(ObjectStore store, DataInputStream in,
+                                    DataOutputStream out) throws IOException {
+        String wantID = in.readUTF();
+        List<String> haveIDs = new ArrayList<>();
+        int haveCount = in.readInt();
+        for (int i = 0; i < haveCount; i += 1) {
+            haveIDs.add(in.readUTF());
+        }
+        Map<Integer, List<String>> objects;
+        synchronized (LOCK) {
+            if (!store.hasCommit(wantID)) {
+                out.writeBoolean(false);
+                out.writeUTF("That remote does not have that commit.");
+                out.flush();
+                return;
+            }
+            haveIDs.removeIf(haveID -> !store.hasCommit(haveID));
+            objects = Remote.objectsToSend(store, wantID, haveIDs);
+        }
+        out.writeBoolean(true);
+        new PackStream(store).send(objects, out);
+    }
+
+    // Push: store the objects sent, then move the branch if it is unchanged.
+    private static void receiveObjects(ObjectStore store, DataInputStream in,
+                                       DataOutputStream out) throws IOException {
+        String branchName = in.readUTF();
+        String expectedID = in.readUTF();
+        String newID = in.readUTF();
+        List<String> commitIDs;
+        try {
+            commitIDs = new PackStream(store).receive(in);
+        } catch (GitletException excp) {
+            out.writeBoolean(false);
+            out.writeUTF(excp.getMessage());
+            out.flush();
+            return;
+        }
+        String error = null;
+        synchronized (LOCK) {
+            store.reloadPacks();
+            for (String commitID : commitIDs) {
+                store.indexCommit(commitID, Commit.findCommit(store, commitID).getMessage());
+            }
+            File branchFile = join(store.getGitletDir(), "refs", "heads", branchName);
+            if (branchName.isEmpty() || branchName.contains("/")
+                    || branchName.contains(File.separator) || branchName.startsWith(".")) {
+                error = "Invalid branch name.";
+            } else if (!store.hasCommit(newID)) {
+                error = "The pushed commit did not arrive.";
+            } else if (!expectedID.equals(branchFile.isFile()
+                    ? readContentsAsString(branchFile) : "")) {
+                error = "Please pull down remote changes before pushing.";
+            } else if (!isComplete(store, newID, new HashSet<>(commitIDs))) {
+                error = "The pushed commit is missing objects.";
+            } else if (!expectedID.isEmpty()
+                    && !store.commitGraph().isAncestor(expectedID, newID)) {
+                error = "Please pull down remote changes before pushing.";
+            } else {
+                writeContents(branchFile, newID);
+            }
+        }
+        out.writeBoolean(error == null);
+        if (error != null) {
+            out.writeUTF(error);
+        }
+        out.flush();
+    }
+
+    // Whether everything NEWID reaches is present. The walk stops at the
+    // commits the branches reach, which are complete; other commits that were
+    // not received just now may be left over from a push that failed, and
+    // are walked like new ones. The trees of the walked commits are walked
+    // whole.
+    private static boolean isComplete(ObjectStore store, String newID,
+                                      Set<String> receivedIDs) {
+        CommitGraph graph = store.commitGraph();
+        Collection<String> headIDs = Remote.heads(store).values();
+        Set<String> seen = new HashSet<>();
+        Deque<String> commitQueue = new ArrayDeque<>(List.of(newID));
+        List<String> treeIDs = new ArrayList<>();
+        List<String> blobIDs = new ArrayList<>();
+        while (!commitQueue.isEmpty()) {
+            String commitID = commitQueue.poll();
+            if (!seen.add(commitID)) {
+                continue;
+            }
+            if (!store.hasCommit(commitID)) {
+                return false;
+            }
+            if (!receivedIDs.contains(commitID)
+                    && headIDs.stream().anyMatch(headID -> graph.isAncestor(commitID, headID))) {
+                continue;
+            }
+            Commit commit = Commit.findCommit(store, commitID);
+            if (commit.getParentCommitID() != null) {
+                commitQueue.add(commit.getParentCommitID());
+            }
+            if (commit.getSecondParentCommitID() != null) {
+                commitQueue.add(commit.getSecondParentCommitID());
+            }
+            if (commit.getTreeID() != null) {
+                treeIDs.add(commit.getTreeID());
+            } else {
+                blobIDs.addAll(commit.getFileNameToBlobID().values());
+            }
+        }
+        while (!treeIDs.isEmpty()) {
+            String treeID = treeIDs.remove(treeIDs.size() - 1);
+            if (!seen.add(treeID)) {
+                continue;
+            }
+            if (!store.hasTree(treeID)) {
+                return false;
+            }
+            Tree.children(store, treeID, treeIDs, blobIDs);
+        }
+        for (String blobID : blobIDs) {
+            if (!seen.add(blobID)) {
+                continue;
+            }
+            if (!store.hasBlob(blobID)) {
+                return false;
+            }
+            for (String chunkID : store.chunksOf(blobID)) {
+                if (!store.hasBlob(chunkID)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,354 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * A directory of a commit: the blobs and subtrees it contains, by name.
+ * File names containing "/" are stored in subtrees, one per directory, and
+ * trees are content-addressed like blobs, so commits share every subtree
+ * that did not change. Updating and diffing trees only descends
+ * into subtrees whose IDs differ.
+ *
+ * A directory with more than FAN_OUT_THRESHOLD files, e.g. the flat top
+ * level of a large repository, keeps them in up to 256 buckets instead,
+ * subtrees chosen by the first byte of the SHA-1 of the file name and named
+ * "/" and its two hex digits, which no file or directory can be named. So a
+ * commit rewrites the directory and one bucket per changed file rather than
+ * a list of every file. A directory keeps its buckets until it has no files.
+ *
+ * Encoding: magic "GTRE", a version byte, the number of entries as an int,
+ * then for every entry in name order its kind (ENTRY_BLOB, ENTRY_TREE or
+ * ENTRY_BUCKET), its name as an int length and UTF-8 bytes, and its raw
+ * object ID. Trees with buckets are version 2, which older readers reject
+ * rather than take the buckets for files.
+ */
+class Tree {
+
+    /** The magic bytes that start an encoded tree. */
+    private static final byte[] MAGIC = {'G', 'T', 'R', 'E'};
+    /** The encoding version of trees without buckets. */
+    private static final int VERSION = 1;
+    /** The encoding version of trees with buckets. */
+    private static final int BUCKETS_VERSION = 2;
+    /** Entry kind of a file. */
+    private static final int ENTRY_BLOB = 1;
+    /** Entry kind of a directory. */
+    private static final int ENTRY_TREE = 2;
+    /** Entry kind of a bucket of the files of a directory. */
+    private static final int ENTRY_BUCKET = 3;
+    /** Directories with more files than this keep them in buckets. */
+    private static final int FAN_OUT_THRESHOLD = 256;
+
+    /** The entries of this tree by name. */
+    private final TreeMap<String, Entry> entries;
+
+    private Tree(TreeMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    // Read a tree; a null ID stands for the empty tree.
+    static Tree read(ObjectStore store, String treeID) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        if (treeID == null) {
+            return new Tree(entries);
+        }
+        byte[] bytes = store.readTree(treeID);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        int version = in.get();
+        if (!Arrays.equals(magic, MAGIC) || (version != VERSION && version != BUCKETS_VERSION)) {
+            throw error("Corrupt tree %s.", treeID);
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i += 1) {
+            int kind = in.get();
+            int nameLength = in.getInt();
+            String name = new String(bytes, in.position(), nameLength, StandardCharsets.UTF_8);
+            in.position(in.position() + nameLength);
+            byte[] id = new byte[ObjectIdTable.ID_LENGTH];
+            in.get(id);
+            entries.put(name, new Entry(kind, toHex(id)));
+        }
+        return new Tree(entries);
+    }
+
+    // Store this tree and return its ID.
+    private String save(ObjectStore store) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(hasBuckets() ? BUCKETS_VERSION : VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(entry.getValue().kind);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(fromHex(entry.getValue().id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] encoded = bytes.toByteArray();
+        String treeID = sha1((Object) encoded);
+        store.saveTree(treeID, encoded);
+        return treeID;
+    }
+
+    // Store the trees of a whole file map and return the root tree ID.
+    static String write(ObjectStore store, Map<String, String> fileNameToBlobID) {
+        return update(store, null, fileNameToBlobID);
+    }
+
+    // Apply CHANGES (file name to new blob ID, or to null for a removal) to
+    // the tree TREEID and return the new root tree ID. Only the trees on the
+    // paths of the changes are read and written; all others are shared.
+    static String update(ObjectStore store, String treeID, Map<String, String> changes) {
+        return apply(store, treeID, changes).save(store);
+    }
+
+    // The tree TREEID with CHANGES applied; changed subtrees are saved, empty
+    // ones are dropped, and the returned tree itself is left to the caller.
+    private static Tree apply(ObjectStore store, String treeID, Map<String, String> changes) {
+        Tree tree = read(store, treeID);
+        boolean bucketed = tree.hasBuckets();
+        Map<String, Map<String, String>> subtreeChanges = new TreeMap<>();
+        Map<String, Map<String, String>> bucketChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0 && bucketed) {
+                bucketChanges.computeIfAbsent(bucketName(path), bucket -> new HashMap<>())
+                        .put(path, change.getValue());
+            } else if (slash < 0) {
+                tree.put(path, change.getValue());
+            } else {
+                subtreeChanges.computeIfAbsent(path.substring(0, slash), dir -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        if (!bucketed && tree.blobCount() > FAN_OUT_THRESHOLD) {
+            // Move every file into its bucket, once.
+            for (Map.Entry<String, Entry> entry : tree.entries.entrySet()) {
+                if (entry.getValue().kind == ENTRY_BLOB) {
+                    bucketChanges.computeIfAbsent(bucketName(entry.getKey()),
+                            bucket -> new HashMap<>()).put(entry.getKey(), entry.getValue().id);
+                }
+            }
+            tree.entries.values().removeIf(entry -> entry.kind == ENTRY_BLOB);
+        }
+        for (Map.Entry<String, Map<String, String>> bucket : bucketChanges.entrySet()) {
+            Entry old = tree.entries.get(bucket.getKey());
+            Tree files = read(store, (old != null) ? old.id : null);
+            for (Map.Entry<String, String> change : bucket.getValue().entrySet()) {
+                files.put(change.getKey(), change.getValue());
+            }
+            if (files.entries.isEmpty()) {
+                tree.entries.remove(bucket.getKey());
+            } else {
+                tree.entries.put(bucket.getKey(), new Entry(ENTRY_BUCKET, files.save(store)));
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> dir : subtreeChanges.entrySet()) {
+            Entry old = tree.entries.get(dir.getKey());
+            String oldSubtreeID = (old != null && old.kind == ENTRY_TREE) ? old.id : null;
+            Tree subtree = apply(store, oldSubtreeID, dir.getValue());
+            if (subtree.entries.isEmpty()) {
+                tree.entries.remove(dir.getKey());
+            } else {
+                tree.entries.put(dir.getKey(), new Entry(ENTRY_TREE, subtree.save(store)));
+            }
+        }
+        return tree;
+    }
+
+    // Add the file NAME with the blob BLOBID, or remove it if BLOBID is null.
+    private void put(String name, String blobID) {
+        if (blobID == null) {
+            entries.remove(name);
+        } else {
+            entries.put(name, new Entry(ENTRY_BLOB, blobID));
+        }
+    }
+
+    private boolean hasBuckets() {
+        return entries.values().stream().anyMatch(entry -> entry.kind == ENTRY_BUCKET);
+    }
+
+    private int blobCount() {
+        return (int) entries.values().stream().filter(entry -> entry.kind == ENTRY_BLOB).count();
+    }
+
+    // The bucket of the file NAME in a directory that has buckets.
+    private static String bucketName(String name) {
+        return "/" + sha1(name).substring(0, 2);
+    }
+
+    // The entries of a tree with the files of its buckets in place of the
+    // buckets.
+    private static Map<String, Entry> withoutBuckets(ObjectStore store, Tree tree) {
+        Map<String, Entry> entries = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : tree.entries.entrySet()) {
+            if (entry.getValue().kind == ENTRY_BUCKET) {
+                entries.putAll(read(store, entry.getValue().id).entries);
+            } else {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    // All files below a tree, with their paths, e.g. "dir/file.txt".
+    static FileMap flatten(ObjectStore store, String treeID) {
+        return flatten(store, treeID, "", FileMap.empty());
+    }
+
+    private static FileMap flatten(ObjectStore store, String treeID, String prefix,
+                                   FileMap files) {
+        FileMap result = files;
+        for (Map.Entry<String, Entry> entry : read(store, treeID).entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.kind == ENTRY_TREE) {
+                result = flatten(store, value.id, prefix + entry.getKey() + "/", result);
+            } else if (value.kind == ENTRY_BUCKET) {
+                result = flatten(store, value.id, prefix, result);
+            } else {
+                result = result.with(prefix + entry.getKey(), value.id);
+            }
+        }
+        return result;
+    }
+
+    // The blob ID of one file, or null if the tree does not contain it.
+    static String lookup(ObjectStore store, String treeID, String path) {
+        String currentID = treeID;
+        String rest = path;
+        while (currentID != null) {
+            int slash = rest.indexOf('/');
+            String name = (slash < 0) ? rest : rest.substring(0, slash);
+            Tree tree = read(store, currentID);
+            Entry entry = tree.entries.get(name);
+            if (entry == null && slash < 0 && tree.hasBuckets()) {
+                Entry bucket = tree.entries.get(bucketName(name));
+                entry = (bucket == null) ? null : read(store, bucket.id).entries.get(name);
+            }
+            if (entry == null) {
+                return null;
+            }
+            if (slash < 0) {
+                return (entry.kind == ENTRY_BLOB) ? entry.id : null;
+            }
+            if (entry.kind != ENTRY_TREE) {
+                return null;
+            }
+            currentID = entry.id;
+            rest = rest.substring(slash + 1);
+        }
+        return null;
+    }
+
+    // The files that differ between two trees: each path maps to its blob ID
+    // in NEWTREEID, or to null if it was removed. Equal subtrees are skipped.
+    static Map<String, String> diff(ObjectStore store, String oldTreeID, String newTreeID) {
+        Map<String, String> changes = new HashMap<>();
+        diff(store, oldTreeID, newTreeID, "", changes);
+        return changes;
+    }
+
+    private static void diff(ObjectStore store, String oldTreeID, String newTreeID,
+                             String prefix, Map<String, String> changes) {
+        if (oldTreeID != null && oldTreeID.equals(newTreeID)) {
+            return;
+        }
+        Tree oldTree = read(store, oldTreeID);
+        Tree newTree = read(store, newTreeID);
+        Map<String, Entry> oldEntries = oldTree.entries;
+        Map<String, Entry> newEntries = newTree.entries;
+        if (oldTree.hasBuckets() != newTree.hasBuckets()) {
+            // The directory was just fanned out or emptied of files.
+            oldEntries = withoutBuckets(store, oldTree);
+            newEntries = withoutBuckets(store, newTree);
+        }
+        TreeSet<String> names = new TreeSet<>(oldEntries.keySet());
+        names.addAll(newEntries.keySet());
+        for (String name : names) {
+            Entry oldEntry = oldEntries.get(name);
+            Entry newEntry = newEntries.get(name);
+            if (oldEntry != null && newEntry != null && oldEntry.equals(newEntry)) {
+                continue;
+            }
+            if (isBucket(oldEntry) || isBucket(newEntry)) {
+                diff(store, isBucket(oldEntry) ? oldEntry.id : null,
+                        isBucket(newEntry) ? newEntry.id : null, prefix, changes);
+                continue;
+            }
+            String path = prefix + name;
+            String oldSubtreeID = subtreeID(oldEntry);
+            String newSubtreeID = subtreeID(newEntry);
+            if (oldSubtreeID != null || newSubtreeID != null) {
+                diff(store, oldSubtreeID, newSubtreeID, path + "/", changes);
+            }
+            if (newEntry != null && newEntry.kind == ENTRY_BLOB) {
+                changes.put(path, newEntry.id);
+            } else if (oldEntry != null && oldEntry.kind == ENTRY_BLOB) {
+                changes.put(path, null);
+            }
+        }
+    }
+
+    private static String subtreeID(Entry entry) {
+        return (entry != null && entry.kind == ENTRY_TREE) ? entry.id : null;
+    }
+
+    private static boolean isBucket(Entry entry) {
+        return entry != null && entry.kind == ENTRY_BUCKET;
+    }
+
+    // Add the IDs of the subtrees, buckets included, and blobs directly in
+    // a tree to SUBTREEIDS and BLOBIDS.
+    static void children(ObjectStore store, String treeID,
+                         List<String> subtreeIDs, List<String> blobIDs) {
+        for (Entry entry : read(store, treeID).entries.values()) {
+            if (entry.kind != ENTRY_BLOB) {
+                subtreeIDs.add(entry.id);
+            } else {
+                blobIDs.add(entry.id);
+            }
+        }
+    }
+
+    /** A tree entry: the kind and ID of the object a name refers to. */
+    private static class Entry {
+        private final int kind;
+        private final String id;
+
+        Entry(int kind, String id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry
+                    && kind == ((Entry) other).kind && id.equals(((Entry) other).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * kind + id.hashCode();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -64,6 +65,34 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns a new SHA-1 MessageDigest. */
+    static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns BYTES as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        char[] digits = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            digits[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            digits[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(digits);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX. */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -221,6 +250,23 @@ class Utils {
         }
     }
 
+    /** Return an object of type T read from the serialized bytes in BYTES,
+     *  casting it to EXPECTEDCLASS.  Throws IllegalArgumentException in case
+     *  of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */